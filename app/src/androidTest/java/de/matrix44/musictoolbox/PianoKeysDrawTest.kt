@@ -0,0 +1,78 @@
+package de.matrix44.musictoolbox
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.os.Debug
+import android.view.Choreographer
+import android.view.View
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checks that drawing the piano keyboard does not allocate any objects.
+ */
+@RunWith(AndroidJUnit4::class)
+class PianoKeysDrawTest {
+
+    @Test
+    fun drawWithoutAllocations() {
+        val instrumentation = InstrumentationRegistry.getInstrumentation()
+        lateinit var keys: PianoKeys
+        instrumentation.runOnMainSync {
+            keys = PianoKeys(instrumentation.targetContext)
+            keys.markMiddleC = true
+            keys.markAllCs = true
+            keys.measure(View.MeasureSpec.makeMeasureSpec(1080, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(600, View.MeasureSpec.EXACTLY))
+            keys.layout(0, 0, 1080, 600)
+            keys.noteOn(60)
+            keys.noteOn(61)
+            keys.noteOn(23)
+        }
+        waitForFrame()
+
+        // Draw some frames to warm up, then count:
+        val canvas = Canvas(Bitmap.createBitmap(1080, 600, Bitmap.Config.ARGB_8888))
+        var allocations = 0
+        instrumentation.runOnMainSync {
+            for (i in 0 until 10)
+                keys.draw(canvas)
+            allocations = countAllocations { keys.draw(canvas) }
+        }
+        assertEquals(0, allocations)
+    }
+
+    /**
+     * Count the allocations of the current thread while running a block.
+     */
+    @Suppress("DEPRECATION")
+    private fun countAllocations(block: () -> Unit): Int {
+        Debug.resetThreadAllocCount()
+        Debug.startAllocCounting()
+        try {
+            for (i in 0 until 100)
+                block()
+        } finally {
+            Debug.stopAllocCounting()
+        }
+        return Debug.getThreadAllocCount()
+    }
+
+    /**
+     * Wait until the pending note changes were applied by the choreographer.
+     */
+    private fun waitForFrame() {
+        val latch = CountDownLatch(1)
+        InstrumentationRegistry.getInstrumentation().runOnMainSync {
+            Choreographer.getInstance().postFrameCallback { latch.countDown() }
+        }
+        assertTrue(latch.await(1, TimeUnit.SECONDS))
+    }
+}
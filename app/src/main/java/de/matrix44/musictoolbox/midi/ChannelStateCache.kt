@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Tracks the controller state of all 16 MIDI channels and caches it at regular checkpoints.
+ *
+ * The state consists of all 128 controllers, the program, the pitch bend and the channel pressure
+ * of each channel. Values that were never set are reported as -1.
+ *
+ * After build() has run over a sorted event buffer, seek() restores the state at any position by
+ * copying the nearest checkpoint and replaying only the events between the checkpoint and the
+ * target. chase() then sends the restored state to a sink, so a player can start in the middle of
+ * a song with the right sounds and controller settings.
+ *
+ * The state of one channel is stored as 133 bytes (128 controllers, program, pressure, pitch bend
+ * LSB and MSB and which of RPN/NRPN was selected last), all checkpoints are kept in one flat array.
+ *
+ * @param checkpointInterval Distance between two checkpoints in ticks.
+ */
+class ChannelStateCache constructor(val checkpointInterval: Int = 1920) : MIDIEventSink {
+
+    /**
+     * The current state of all channels.
+     */
+    private val state = ByteArray(STATE_SIZE)
+
+    /**
+     * Position of each checkpoint.
+     */
+    private var checkpointTicks = IntArray(16)
+
+    /**
+     * Index of the first event in the source buffer that is not included in each checkpoint.
+     */
+    private var checkpointEvents = IntArray(16)
+
+    /**
+     * The states of all checkpoints.
+     */
+    private var checkpointStates = ByteArray(16 * STATE_SIZE)
+
+    /**
+     * Number of checkpoints.
+     */
+    var checkpointCount = 0
+        private set
+
+    init {
+        require(checkpointInterval > 0) { "Invalid checkpoint interval $checkpointInterval" }
+        reset()
+    }
+
+    /**
+     * Reset the current state to "nothing set". The checkpoints are kept.
+     */
+    fun reset() {
+        state.fill(UNSET)
+    }
+
+    /**
+     * Update the current state from a packed message.
+     *
+     * @param message The packed message.
+     */
+    fun apply(message: Int) {
+        val base = PackedMIDIMessage.channel(message) * CHANNEL_SIZE
+        when (PackedMIDIMessage.command(message)) {
+            0xB0 -> {
+                val controller = PackedMIDIMessage.data1(message)
+                when {
+                    controller == 121 -> resetControllers(base)
+                    controller < 120  -> state[base + controller] = PackedMIDIMessage.data2(message).toByte()
+                }
+                when (controller) {
+                    98, 99   -> state[base + PARAMETER] = NRPN
+                    100, 101 -> state[base + PARAMETER] = RPN
+                }
+            }
+            0xC0 -> state[base + PROGRAM] = PackedMIDIMessage.data1(message).toByte()
+            0xD0 -> state[base + PRESSURE] = PackedMIDIMessage.data1(message).toByte()
+            0xE0 -> {
+                state[base + BEND_LSB] = PackedMIDIMessage.data1(message).toByte()
+                state[base + BEND_MSB] = PackedMIDIMessage.data2(message).toByte()
+            }
+        }
+    }
+
+    /**
+     * Update the current state from an event.
+     */
+    override fun onEvent(ticks: Int, origin: Int, message: Int) {
+        apply(message)
+    }
+
+    /**
+     * Current value of a controller or -1 if it was never set.
+     *
+     * @param channel The channel.
+     * @param controller The controller number.
+     */
+    fun controller(channel: Int, controller: Int) = state[channel * CHANNEL_SIZE + controller].toInt()
+
+    /**
+     * Current program or -1 if it was never set.
+     */
+    fun program(channel: Int) = state[channel * CHANNEL_SIZE + PROGRAM].toInt()
+
+    /**
+     * Current channel pressure or -1 if it was never set.
+     */
+    fun channelPressure(channel: Int) = state[channel * CHANNEL_SIZE + PRESSURE].toInt()
+
+    /**
+     * Current 14 bit pitch bend value or -1 if it was never set.
+     */
+    fun pitchBend(channel: Int): Int {
+        val base = channel * CHANNEL_SIZE
+        if (state[base + BEND_MSB] == UNSET)
+            return -1
+        return state[base + BEND_LSB].toInt() or (state[base + BEND_MSB].toInt() shl 7)
+    }
+
+    /**
+     * Build the checkpoints for an event buffer.
+     *
+     * A checkpoint is taken every checkpointInterval ticks. It holds the state before the first
+     * event at or after its position. The current state is left at the end of the buffer.
+     *
+     * @param events The source events. The buffer has to be sorted.
+     */
+    fun build(events: MIDIEventBuffer) {
+
+        // Start from scratch:
+        reset()
+        checkpointCount = 0
+        addCheckpoint(0, 0)
+
+        // Run through all events and take checkpoints on the way:
+        var nextCheckpoint = checkpointInterval
+        for (i in 0 until events.size) {
+            val ticks = events.ticksAt(i)
+            while (ticks >= nextCheckpoint) {
+                addCheckpoint(nextCheckpoint, i)
+                nextCheckpoint += checkpointInterval
+            }
+            apply(events.messageAt(i))
+        }
+    }
+
+    /**
+     * Restore the state at a given position.
+     *
+     * The result includes all events before ticks. The buffer has to be the one that was passed
+     * to build() (or one that is identical up to the target position).
+     *
+     * @param events The source events.
+     * @param ticks The target position.
+     * @return The index of the first event at or after ticks, this is where playback continues.
+     */
+    fun seek(events: MIDIEventBuffer, ticks: Int): Int {
+
+        // Find the last checkpoint at or before the target:
+        var lo = 0
+        var hi = checkpointCount
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (checkpointTicks[mid] <= ticks)
+                lo = mid + 1
+            else
+                hi = mid
+        }
+
+        // Restore the checkpoint (or start from scratch if there is none):
+        var index = 0
+        if (lo > 0) {
+            System.arraycopy(checkpointStates, (lo - 1) * STATE_SIZE, state, 0, STATE_SIZE)
+            index = checkpointEvents[lo - 1]
+        } else
+            reset()
+
+        // Replay the rest:
+        while (index < events.size && events.ticksAt(index) < ticks) {
+            apply(events.messageAt(index))
+            index++
+        }
+        return index
+    }
+
+    /**
+     * Send the current state to a sink.
+     *
+     * For each channel the bank select, program, all other controllers, pitch bend and channel
+     * pressure are sent, leaving out values that were never set. The parameter numbers go out
+     * before the data entry, so the value ends up at the parameter that was selected last. Data
+     * increment/decrement are actions and not state, they are never sent.
+     *
+     * @param sink The receiver of the messages.
+     * @param ticks Time stamp of the generated events.
+     * @param origin Origin of the generated events.
+     * @return The number of sent messages.
+     */
+    fun chase(sink: MIDIEventSink, ticks: Int = 0, origin: Int = -1): Int {
+        var count = 0
+        for (channel in 0 until 16) {
+            val base = channel * CHANNEL_SIZE
+
+            // Bank select has to come before the program change:
+            count += chaseController(sink, ticks, origin, channel, 0)
+            count += chaseController(sink, ticks, origin, channel, 32)
+            val program = state[base + PROGRAM].toInt()
+            if (program >= 0) {
+                sink.onEvent(ticks, origin, PackedMIDIMessage.programChange(channel, program))
+                count++
+            }
+
+            // Remaining controllers:
+            for (controller in 1 until 120) {
+                if (controller != 32 && controller != 6 && controller != 38 && controller !in 96..101)
+                    count += chaseController(sink, ticks, origin, channel, controller)
+            }
+
+            // Parameter numbers (the last selected kind last), then the data entry:
+            val nrpnLast = state[base + PARAMETER] == NRPN
+            val first = if (nrpnLast) 101 else 99
+            val last = if (nrpnLast) 99 else 101
+            count += chaseController(sink, ticks, origin, channel, first)
+            count += chaseController(sink, ticks, origin, channel, first - 1)
+            count += chaseController(sink, ticks, origin, channel, last)
+            count += chaseController(sink, ticks, origin, channel, last - 1)
+            count += chaseController(sink, ticks, origin, channel, 6)
+            count += chaseController(sink, ticks, origin, channel, 38)
+
+            // Pitch bend and pressure:
+            val bend = pitchBend(channel)
+            if (bend >= 0) {
+                sink.onEvent(ticks, origin, PackedMIDIMessage.pitchBend(channel, bend))
+                count++
+            }
+            val pressure = state[base + PRESSURE].toInt()
+            if (pressure >= 0) {
+                sink.onEvent(ticks, origin, PackedMIDIMessage.channelPressure(channel, pressure))
+                count++
+            }
+        }
+        return count
+    }
+
+    /**
+     * Send one controller if it was set.
+     *
+     * @return The number of sent messages.
+     */
+    private fun chaseController(sink: MIDIEventSink, ticks: Int, origin: Int, channel: Int, controller: Int): Int {
+        val value = state[channel * CHANNEL_SIZE + controller].toInt()
+        if (value < 0)
+            return 0
+        sink.onEvent(ticks, origin, PackedMIDIMessage.controlChange(channel, controller, value))
+        return 1
+    }
+
+    /**
+     * Store the current state as new checkpoint.
+     */
+    private fun addCheckpoint(ticks: Int, eventIndex: Int) {
+        if (checkpointCount == checkpointTicks.size) {
+            val newSize = checkpointCount * 2
+            checkpointTicks  = checkpointTicks.copyOf(newSize)
+            checkpointEvents = checkpointEvents.copyOf(newSize)
+            checkpointStates = checkpointStates.copyOf(newSize * STATE_SIZE)
+        }
+        checkpointTicks[checkpointCount]  = ticks
+        checkpointEvents[checkpointCount] = eventIndex
+        System.arraycopy(state, 0, checkpointStates, checkpointCount * STATE_SIZE, STATE_SIZE)
+        checkpointCount++
+    }
+
+    /**
+     * Handle a Reset All Controllers message.
+     *
+     * Following the recommended practice, volume, pan, bank select, the effect depths and the
+     * program are kept. The modulation, expression, pedals, RPN/NRPN numbers, pitch bend and
+     * pressure are reset to their defaults.
+     */
+    private fun resetControllers(base: Int) {
+        state[base + 1]  = 0
+        state[base + 11] = 127
+        for (controller in 64..69)
+            state[base + controller] = 0
+        for (controller in 98..101)
+            state[base + controller] = 127
+        state[base + PRESSURE] = 0
+        state[base + BEND_LSB] = 0
+        state[base + BEND_MSB] = 64
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Marker for values that were never set.
+         */
+        private const val UNSET: Byte = -1
+
+        /**
+         * Layout of the state of one channel.
+         */
+        private const val PROGRAM = 128
+        private const val PRESSURE = 129
+        private const val BEND_LSB = 130
+        private const val BEND_MSB = 131
+        private const val PARAMETER = 132
+        private const val CHANNEL_SIZE = 133
+
+        /**
+         * Values of the PARAMETER entry.
+         */
+        private const val RPN: Byte = 0
+        private const val NRPN: Byte = 1
+
+        /**
+         * Size of the state of all channels.
+         */
+        private const val STATE_SIZE = 16 * CHANNEL_SIZE
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import kotlin.math.abs
+
+/**
+ * Reduces dense streams of continuous controller messages.
+ *
+ * Pitch bend, channel pressure and control change messages from continuous gestures (wheels,
+ * faders, ribbons) are thinned out: a value is only passed on if it differs enough from the last
+ * sent value and enough time has passed since then. Values that are held back are not lost, the
+ * latest one is kept as pending value and sent later by poll() or flush(), so the final position
+ * of every gesture always arrives. Pending values of a channel are also sent before any other
+ * message of that channel passes through, so notes are never played with stale controller values.
+ *
+ * Switch like controllers are never thinned: bank select (0/32), data entry (6/38), the pedals and
+ * switches 64..69, the RPN/NRPN controllers 96..101 and the channel mode messages 120..127.
+ *
+ * The thinner can be used as event sink in a live chain or on recorded buffers with thin().
+ *
+ * @param sink The receiver of the thinned stream (not needed for thin()).
+ * @param valueDelta Minimum change of 7 bit values (control change, channel pressure).
+ * @param pitchBendDelta Minimum change of 14 bit pitch bend values.
+ * @param minInterval Minimum time between two sent values of the same controller in ticks.
+ */
+class ControllerThinner constructor(
+    var sink: MIDIEventSink? = null,
+    var valueDelta: Int = 2,
+    var pitchBendDelta: Int = 64,
+    var minInterval: Int = 10
+) : MIDIEventSink {
+
+    /**
+     * Last sent value of each controller or -1.
+     */
+    private val lastValues = IntArray(KEYS)
+
+    /**
+     * Time of the last sent value of each controller.
+     */
+    private val lastTicks = IntArray(KEYS)
+
+    /**
+     * Pending message of each controller or 0.
+     */
+    private val pendingMessages = IntArray(KEYS)
+    private val pendingTicks = IntArray(KEYS)
+    private val pendingOrigins = IntArray(KEYS)
+
+    /**
+     * Buffer index of the pending message (thin() only).
+     */
+    private val pendingIndices = IntArray(KEYS)
+
+    /**
+     * Number of pending messages per channel.
+     */
+    private val channelPending = IntArray(16)
+
+    /**
+     * Keep flags of the events while thinning a buffer (null in live mode).
+     */
+    private var keep: BooleanArray? = null
+
+    /**
+     * Buffer index of the first event that is thinned (keep[0]).
+     */
+    private var keepStart = 0
+
+    /**
+     * Number of received continuous controller messages.
+     */
+    var receivedCount = 0L
+        private set
+
+    /**
+     * Number of sent continuous controller messages.
+     */
+    var sentCount = 0L
+        private set
+
+    /**
+     * Number of messages that were dropped or merged.
+     */
+    val savedCount: Long
+        get() = receivedCount - sentCount - pendingCount
+
+    /**
+     * Number of held back messages.
+     */
+    val pendingCount: Int
+        get() = channelPending.sum()
+
+    init {
+        reset()
+    }
+
+    /**
+     * Forget all values and pending messages. The counters are kept.
+     */
+    fun reset() {
+        lastValues.fill(-1)
+        pendingMessages.fill(0)
+        channelPending.fill(0)
+    }
+
+    /**
+     * Reset the counters.
+     */
+    fun resetCounters() {
+        receivedCount = 0L
+        sentCount = 0L
+    }
+
+    /**
+     * Process an event.
+     */
+    override fun onEvent(ticks: Int, origin: Int, message: Int) {
+        process(ticks, origin, message, -1)
+    }
+
+    /**
+     * Send the pending values whose minimum interval has passed.
+     *
+     * Call this regularly (eg once per frame or timer tick) so held back values are not delayed
+     * longer than needed.
+     *
+     * @param ticks The current time.
+     */
+    fun poll(ticks: Int) {
+        for (channel in 0 until 16)
+            sendPending(channel, true, ticks)
+    }
+
+    /**
+     * Send all pending values now (eg when the gesture ended or before stopping).
+     */
+    fun flush() {
+        for (channel in 0 until 16)
+            sendPending(channel, false, 0)
+    }
+
+    /**
+     * Thin a range of a recorded buffer in place.
+     *
+     * The removed events are taken out of the buffer, the remaining events keep their order. The
+     * state is reset before and after, the counters are updated.
+     *
+     * @param events The events to thin. The range has to be sorted.
+     * @param from Index of the first event.
+     * @param to Index after the last event.
+     * @return The number of removed events.
+     */
+    fun thin(events: MIDIEventBuffer, from: Int = 0, to: Int = events.size): Int {
+
+        // Decide for each event:
+        reset()
+        val flags = BooleanArray(to - from)
+        keep = flags
+        keepStart = from
+        try {
+            for (i in from until to)
+                process(events.ticksAt(i), events.originAt(i), events.messageAt(i), i)
+            flush()
+        } finally {
+            keep = null
+            reset()
+        }
+
+        // Compact the buffer:
+        var write = from
+        for (read in from until events.size) {
+            if (read < to && !flags[read - from])
+                continue
+            if (write != read)
+                events.set(write, events.ticksAt(read), events.originAt(read), events.messageAt(read))
+            write++
+        }
+        val removed = events.size - write
+        events.truncate(write)
+        return removed
+    }
+
+    /**
+     * Handle one message.
+     *
+     * @param index Buffer index of the event in thin() or -1 in live mode.
+     */
+    private fun process(ticks: Int, origin: Int, message: Int, index: Int) {
+
+        // Find the controller and its value:
+        val channel = PackedMIDIMessage.channel(message)
+        val key: Int
+        val value: Int
+        val delta: Int
+        when (PackedMIDIMessage.command(message)) {
+            0xB0 -> {
+                val controller = PackedMIDIMessage.data1(message)
+                if ((excludedControllers[controller shr 6] ushr (controller and 63)) and 1L != 0L) {
+                    pass(ticks, origin, message, index)
+                    return
+                }
+                key = (channel shl 7) or controller
+                value = PackedMIDIMessage.data2(message)
+                delta = valueDelta
+            }
+            0xD0 -> {
+                key = PRESSURE_KEYS + channel
+                value = PackedMIDIMessage.data1(message)
+                delta = valueDelta
+            }
+            0xE0 -> {
+                key = PITCH_BEND_KEYS + channel
+                value = PackedMIDIMessage.pitchBendValue(message)
+                delta = pitchBendDelta
+            }
+            else -> {
+                pass(ticks, origin, message, index)
+                return
+            }
+        }
+        receivedCount++
+
+        // The first value of a controller is always sent:
+        val last = lastValues[key]
+        if (last < 0) {
+            send(key, ticks, origin, message, value, index)
+            return
+        }
+
+        // Back to the sent value, nothing has to be sent at all:
+        if (value == last) {
+            dropPending(key)
+            return
+        }
+
+        // Big enough change after enough time?
+        if (abs(value - last) >= delta && ticks - lastTicks[key] >= minInterval) {
+            dropPending(key)
+            send(key, ticks, origin, message, value, index)
+            return
+        }
+
+        // Hold it back:
+        if (pendingMessages[key] == 0)
+            channelPending[channel]++
+        pendingMessages[key] = message
+        pendingTicks[key]    = ticks
+        pendingOrigins[key]  = origin
+        pendingIndices[key]  = index
+    }
+
+    /**
+     * Pass a message that is not thinned, after the pending values of its channel.
+     */
+    private fun pass(ticks: Int, origin: Int, message: Int, index: Int) {
+        if (PackedMIDIMessage.isChannelMessage(message))
+            sendPending(PackedMIDIMessage.channel(message), false, 0)
+        if (index >= 0)
+            keep!![index - keepStart] = true
+        else
+            sink?.onEvent(ticks, origin, message)
+    }
+
+    /**
+     * Send a controller value.
+     */
+    private fun send(key: Int, ticks: Int, origin: Int, message: Int, value: Int, index: Int) {
+        lastValues[key] = value
+        lastTicks[key] = ticks
+        sentCount++
+        if (index >= 0)
+            keep!![index - keepStart] = true
+        else
+            sink?.onEvent(ticks, origin, message)
+    }
+
+    /**
+     * Send the pending value of a controller.
+     */
+    private fun sendPending(key: Int) {
+        val message = pendingMessages[key]
+        dropPending(key)
+        val value = if (key >= PITCH_BEND_KEYS) PackedMIDIMessage.pitchBendValue(message)
+            else if (key >= PRESSURE_KEYS) PackedMIDIMessage.data1(message)
+            else PackedMIDIMessage.data2(message)
+        send(key, pendingTicks[key], pendingOrigins[key], message, value, pendingIndices[key])
+    }
+
+    /**
+     * Forget the pending value of a controller.
+     */
+    private fun dropPending(key: Int) {
+        if (pendingMessages[key] == 0)
+            return
+        pendingMessages[key] = 0
+        channelPending[channelOf(key)]--
+    }
+
+    /**
+     * Send the pending values of a channel.
+     *
+     * @param channel The channel.
+     * @param dueOnly Only send values whose minimum interval has passed.
+     * @param ticks The current time (if dueOnly is set).
+     */
+    private fun sendPending(channel: Int, dueOnly: Boolean, ticks: Int) {
+        if (channelPending[channel] == 0)
+            return
+        for (controller in 0 until 128)
+            sendPendingKey((channel shl 7) or controller, dueOnly, ticks)
+        sendPendingKey(PRESSURE_KEYS + channel, dueOnly, ticks)
+        sendPendingKey(PITCH_BEND_KEYS + channel, dueOnly, ticks)
+    }
+
+    /**
+     * Send the pending value of a controller if there is one.
+     */
+    private fun sendPendingKey(key: Int, dueOnly: Boolean, ticks: Int) {
+        if (pendingMessages[key] != 0 && (!dueOnly || ticks - lastTicks[key] >= minInterval))
+            sendPending(key)
+    }
+
+    /**
+     * Channel of a controller key.
+     */
+    private fun channelOf(key: Int) = when {
+        key >= PITCH_BEND_KEYS -> key - PITCH_BEND_KEYS
+        key >= PRESSURE_KEYS -> key - PRESSURE_KEYS
+        else -> key shr 7
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Key layout: 128 controllers per channel, then pressure and pitch bend of each channel.
+         */
+        private const val PRESSURE_KEYS = 16 * 128
+        private const val PITCH_BEND_KEYS = PRESSURE_KEYS + 16
+        private const val KEYS = PITCH_BEND_KEYS + 16
+
+        /**
+         * Controllers that are never thinned (128 bits).
+         */
+        private val excludedControllers = LongArray(2).also {
+            for (controller in intArrayOf(0, 32, 6, 38, 64, 65, 66, 67, 68, 69, 96, 97, 98, 99, 100, 101,
+                120, 121, 122, 123, 124, 125, 126, 127))
+                it[controller shr 6] = it[controller shr 6] or (1L shl (controller and 63))
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import de.matrix44.musictoolbox.ui.tools.TempoMarkings
+
+/**
+ * Estimates the tempo of an incoming MIDI clock.
+ *
+ * The pulse interval is measured over the last quarter note (24 pulses), which averages out the
+ * jitter of the single pulses, and then smoothed with an exponential filter. Intervals that are
+ * far off the current estimate (lost or doubled pulses) are ignored.
+ *
+ * Feed the follower with realtime messages and their arrival times through onMessage(), or use it
+ * as event sink in which case the arrival time is taken when the event is received.
+ *
+ * With the markings of the tempo table (see TempoMarkings.fromResources()) the follower also
+ * tells the tempo marking that matches the current tempo.
+ *
+ * @param smoothing Weight of a new measurement (0..1, smaller is smoother but slower).
+ */
+class MIDIClockFollower constructor(var smoothing: Double = 0.2) : MIDIEventSink {
+
+    /**
+     * Arrival times of the last pulses.
+     */
+    private val pulseTimes = LongArray(MIDIClockMaster.PPQN + 1)
+
+    /**
+     * Number of pulses received since the last reset.
+     */
+    private var received = 0L
+
+    /**
+     * The smoothed pulse interval in nanoseconds or 0 if unknown.
+     */
+    private var interval = 0.0
+
+    /**
+     * Number of intervals in a row that didn't match the estimate.
+     */
+    private var rejected = 0
+
+    /**
+     * The current tempo estimate or 0 if unknown.
+     */
+    @Volatile
+    var bpm = 0.0
+        private set
+
+    /**
+     * The tempo markings used for currentMarking.
+     */
+    var tempoMarkings: TempoMarkings? = null
+
+    /**
+     * The tempo marking that fits the current tempo best or null if the tempo is unknown or no
+     * markings are set.
+     */
+    val currentMarking: TempoMarkings.Marking?
+        get() {
+            val tempo = bpm
+            return if (tempo > 0.0) tempoMarkings?.bestMarkingFor(tempo) else null
+        }
+
+    /**
+     * Did we receive a Start or Continue message without Stop?
+     */
+    @Volatile
+    var isRunning = false
+        private set
+
+    /**
+     * Number of pulses since the last Start message.
+     */
+    @Volatile
+    var pulseCount = 0L
+        private set
+
+    /**
+     * Forget the tempo estimate.
+     */
+    fun reset() {
+        received = 0L
+        interval = 0.0
+        rejected = 0
+        bpm = 0.0
+    }
+
+    /**
+     * Process a realtime message.
+     *
+     * @param message The packed message. Messages other than clock, start, continue and stop are
+     *                ignored.
+     * @param timeNanos Arrival time of the message.
+     */
+    fun onMessage(message: Int, timeNanos: Long) {
+        when (PackedMIDIMessage.status(message)) {
+            MIDIClockMaster.CLOCK -> onClock(timeNanos)
+            MIDIClockMaster.START -> {
+                pulseCount = 0L
+                isRunning = true
+            }
+            MIDIClockMaster.CONTINUE -> isRunning = true
+            MIDIClockMaster.STOP -> isRunning = false
+        }
+    }
+
+    /**
+     * Process an event, the arrival time is now.
+     */
+    override fun onEvent(ticks: Int, origin: Int, message: Int) {
+        onMessage(message, System.nanoTime())
+    }
+
+    /**
+     * Process a clock pulse.
+     *
+     * @param timeNanos Arrival time of the pulse.
+     */
+    fun onClock(timeNanos: Long) {
+
+        // Remember the pulse:
+        val size = pulseTimes.size
+        pulseTimes[(received % size).toInt()] = timeNanos
+        received++
+        if (isRunning)
+            pulseCount++
+
+        // Measure the interval over the available pulses (up to one quarter note):
+        val span = minOf(received - 1, (size - 1).toLong())
+        if (span < 1)
+            return
+        val first = pulseTimes[((received - 1 - span) % size).toInt()]
+        val measured = (timeNanos - first).toDouble() / span
+
+        // Check the last single interval for lost or doubled pulses:
+        if (interval > 0.0) {
+            val last = (timeNanos - pulseTimes[((received - 2) % size).toInt()]).toDouble()
+            if (last > interval * 1.8 || last < interval * 0.55) {
+
+                // Restart the measurement at this pulse, if this keeps happening the tempo has
+                // really changed and the estimate starts over:
+                pulseTimes[0] = timeNanos
+                received = 1
+                if (++rejected >= 3) {
+                    interval = 0.0
+                    rejected = 0
+                }
+                return
+            }
+            rejected = 0
+        }
+
+        // Smooth:
+        interval = if (interval > 0.0) interval + (measured - interval) * smoothing else measured
+        bpm = 60000000000.0 / (interval * MIDIClockMaster.PPQN)
+    }
+}
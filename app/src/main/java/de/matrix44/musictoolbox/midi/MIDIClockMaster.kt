@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import android.os.Process
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.roundToLong
+
+/**
+ * Generates MIDI clock (24 pulses per quarter note).
+ *
+ * The time of every pulse is computed from the start time and the pulse number instead of adding
+ * up intervals, so rounding errors and late wake ups don't add up and the clock doesn't drift even
+ * over hours. A tempo change starts a new segment at the next pulse.
+ *
+ * The clock runs on its own thread with raised priority. start() sends a Start message followed
+ * by the clock pulses, stop() sends a Stop message. The messages are passed to the sink as packed
+ * messages with the pulse number as ticks.
+ *
+ * @param sink The receiver of the clock messages.
+ * @param bpm The initial tempo.
+ * @param threadPriority Android thread priority of the clock thread.
+ * @param spinNanos The clock thread busy waits for pulses that are closer than this.
+ */
+class MIDIClockMaster constructor(
+    private val sink: MIDIEventSink,
+    bpm: Double = 120.0,
+    private val threadPriority: Int = Process.THREAD_PRIORITY_URGENT_AUDIO,
+    @Volatile var spinNanos: Long = 100000L
+) {
+
+    /**
+     * Lock for the timing values.
+     */
+    private val lock = Any()
+
+    /**
+     * The current tempo.
+     */
+    private var _bpm = bpm
+    var bpm: Double
+        get() = synchronized(lock) { _bpm }
+        set(value) {
+            require(value > 0.0) { "Invalid tempo $value" }
+            synchronized(lock) {
+
+                // Start a new segment at the next pulse so the pulses before it stay in place:
+                if (running) {
+                    originNanos = pulseTime(nextPulse)
+                    originPulse = nextPulse
+                }
+                _bpm = value
+            }
+        }
+
+    /**
+     * Start time and pulse number of the current tempo segment.
+     */
+    private var originNanos = 0L
+    private var originPulse = 0L
+
+    /**
+     * Number of the next pulse to send.
+     */
+    private var nextPulse = 0L
+
+    /**
+     * The clock thread.
+     */
+    private var thread: Thread? = null
+
+    /**
+     * Is the clock running?
+     */
+    @Volatile
+    private var running = false
+
+    /**
+     * Is the clock running?
+     */
+    val isRunning: Boolean
+        get() = running
+
+    /**
+     * Number of pulses sent since the start.
+     */
+    val pulseCount: Long
+        get() = synchronized(lock) { nextPulse }
+
+    init {
+        require(bpm > 0.0) { "Invalid tempo $bpm" }
+    }
+
+    /**
+     * Time of a pulse in the System.nanoTime() time base.
+     *
+     * This is only valid for pulses of the current tempo segment.
+     *
+     * @param pulse The pulse number.
+     */
+    fun pulseTime(pulse: Long) = synchronized(lock) {
+        originNanos + ((pulse - originPulse) * NANOS_PER_MINUTE / (_bpm * PPQN)).roundToLong()
+    }
+
+    /**
+     * Start the clock.
+     *
+     * @param startNanos Time of the first pulse in the System.nanoTime() time base.
+     */
+    fun start(startNanos: Long = System.nanoTime()) {
+        if (thread != null)
+            return
+        synchronized(lock) {
+            originNanos = startNanos
+            originPulse = 0L
+            nextPulse   = 0L
+        }
+        running = true
+        sink.onEvent(0, -1, START)
+        val t = Thread(Runnable { run() }, "MIDIClockMaster")
+        thread = t
+        t.start()
+    }
+
+    /**
+     * Stop the clock and wait for the clock thread to finish.
+     */
+    fun stop() {
+        val t = thread ?: return
+        running = false
+        LockSupport.unpark(t)
+        t.join()
+        thread = null
+        sink.onEvent(pulseCount.toInt(), -1, STOP)
+    }
+
+    /**
+     * Main loop of the clock thread.
+     */
+    private fun run() {
+        Process.setThreadPriority(threadPriority)
+        while (running) {
+
+            // Time of the next pulse:
+            var pulse: Long
+            var due: Long
+            synchronized(lock) {
+                pulse = nextPulse
+                due = pulseTime(pulse)
+            }
+
+            // Send it if it's due:
+            val wait = due - System.nanoTime()
+            if (wait <= 0L) {
+                sink.onEvent(pulse.toInt(), -1, CLOCK)
+                synchronized(lock) {
+                    nextPulse = pulse + 1
+                }
+                continue
+            }
+
+            // Wait, the last part is spent spinning:
+            val spin = spinNanos
+            if (wait > spin)
+                LockSupport.parkNanos(this, wait - spin)
+            else
+                Thread.yield()
+        }
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Pulses per quarter note.
+         */
+        const val PPQN = 24
+
+        /**
+         * Realtime messages.
+         */
+        const val CLOCK = 0xF8
+        const val START = 0xFA
+        const val CONTINUE = 0xFB
+        const val STOP = 0xFC
+
+        /**
+         * Nanoseconds per minute.
+         */
+        private const val NANOS_PER_MINUTE = 60000000000.0
+    }
+}
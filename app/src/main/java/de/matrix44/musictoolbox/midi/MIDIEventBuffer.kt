@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Growable container for large amounts of MIDI events (recording buffers, clips, tracks etc).
+ *
+ * Instead of keeping one MIDIEvent object per event the buffer stores the time stamps, origins and
+ * packed messages (see PackedMIDIMessage) in parallel primitive arrays. The ticks in this buffer
+ * are always absolute ticks from the start of the buffer's context.
+ *
+ * This class is not thread safe.
+ *
+ * @param initialCapacity Number of events the buffer can hold before it has to grow.
+ */
+class MIDIEventBuffer constructor(initialCapacity: Int = 1024) {
+
+    /**
+     * Time stamps of all events.
+     */
+    private var _ticks = IntArray(maxOf(initialCapacity, 16))
+
+    /**
+     * Origins of all events.
+     */
+    private var _origins = IntArray(_ticks.size)
+
+    /**
+     * Packed messages of all events.
+     */
+    private var _messages = IntArray(_ticks.size)
+
+    /**
+     * Scratch space for the merge sort. Allocated on first use and reused afterwards.
+     */
+    private var sortTicks = IntArray(0)
+    private var sortOrigins = IntArray(0)
+    private var sortMessages = IntArray(0)
+
+    /**
+     * Number of events stored in this buffer.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Number of events the buffer can hold without growing.
+     */
+    val capacity: Int
+        get() = _ticks.size
+
+    /**
+     * Checks if the buffer is empty.
+     */
+    fun isEmpty() = size == 0
+
+    /**
+     * Make sure that the buffer can hold at least the given number of events.
+     *
+     * @param minCapacity The needed capacity.
+     */
+    fun ensureCapacity(minCapacity: Int) {
+
+        // Enough room?
+        if (minCapacity <= _ticks.size)
+            return
+
+        // Grow by 50% at least:
+        val newCapacity = maxOf(minCapacity, _ticks.size + (_ticks.size shr 1))
+        _ticks    = _ticks.copyOf(newCapacity)
+        _origins  = _origins.copyOf(newCapacity)
+        _messages = _messages.copyOf(newCapacity)
+    }
+
+    /**
+     * Append an event to the end of the buffer.
+     *
+     * @param ticks Time stamp of the event.
+     * @param origin ID of the interface that created this event.
+     * @param message The packed message.
+     * @return The index of the new event.
+     */
+    fun append(ticks: Int, origin: Int, message: Int): Int {
+        ensureCapacity(size + 1)
+        _ticks[size]    = ticks
+        _origins[size]  = origin
+        _messages[size] = message
+        return size++
+    }
+
+    /**
+     * Append a MIDIEvent object to the end of the buffer.
+     *
+     * @param event The event to append. The message must not be a system exclusive message.
+     * @return The index of the new event.
+     */
+    fun append(event: MIDIEvent) = append(event.ticks, event.origin, event.message.pack())
+
+    /**
+     * Append a range of events from another buffer.
+     *
+     * @param other The source buffer.
+     * @param from Index of the first event to copy.
+     * @param to Index after the last event to copy.
+     */
+    fun appendAll(other: MIDIEventBuffer, from: Int = 0, to: Int = other.size) {
+        val count = to - from
+        ensureCapacity(size + count)
+        System.arraycopy(other._ticks,    from, _ticks,    size, count)
+        System.arraycopy(other._origins,  from, _origins,  size, count)
+        System.arraycopy(other._messages, from, _messages, size, count)
+        size += count
+    }
+
+    /**
+     * Time stamp of the event at the given index.
+     */
+    fun ticksAt(index: Int) = _ticks[index]
+
+    /**
+     * Origin of the event at the given index.
+     */
+    fun originAt(index: Int) = _origins[index]
+
+    /**
+     * Packed message of the event at the given index.
+     */
+    fun messageAt(index: Int) = _messages[index]
+
+    /**
+     * Change the time stamp of the event at the given index.
+     *
+     * Changing time stamps can break the sort order so you might have to call sort() afterwards.
+     */
+    fun setTicks(index: Int, ticks: Int) {
+        _ticks[index] = ticks
+    }
+
+    /**
+     * Change the origin of the event at the given index.
+     */
+    fun setOrigin(index: Int, origin: Int) {
+        _origins[index] = origin
+    }
+
+    /**
+     * Change the packed message of the event at the given index.
+     */
+    fun setMessage(index: Int, message: Int) {
+        _messages[index] = message
+    }
+
+    /**
+     * Overwrite the event at the given index.
+     */
+    fun set(index: Int, ticks: Int, origin: Int, message: Int) {
+        _ticks[index]    = ticks
+        _origins[index]  = origin
+        _messages[index] = message
+    }
+
+    /**
+     * Create a MIDIEvent object for the event at the given index.
+     *
+     * This allocates and is meant for the places where the object API is needed.
+     */
+    fun eventAt(index: Int) =
+        MIDIEvent(PackedMIDIMessage.toMessage(_messages[index]), _ticks[index], _origins[index])
+
+    /**
+     * Remove all events. The capacity is kept.
+     */
+    fun clear() {
+        size = 0
+    }
+
+    /**
+     * Shrink the buffer to the given number of events.
+     *
+     * @param newSize The new size. Must not be larger than the current size.
+     */
+    fun truncate(newSize: Int) {
+        require(newSize in 0..size) { "Invalid size $newSize" }
+        size = newSize
+    }
+
+    /**
+     * Find the first event with a time stamp at or after the given tick.
+     *
+     * The buffer has to be sorted for this to work.
+     *
+     * @param ticks The tick to search for.
+     * @return The index of the event or size if there is none.
+     */
+    fun lowerBound(ticks: Int): Int {
+        var lo = 0
+        var hi = size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (_ticks[mid] < ticks)
+                lo = mid + 1
+            else
+                hi = mid
+        }
+        return lo
+    }
+
+    /**
+     * Find the first event with a time stamp after the given tick.
+     *
+     * The buffer has to be sorted for this to work.
+     *
+     * @param ticks The tick to search for.
+     * @return The index of the event or size if there is none.
+     */
+    fun upperBound(ticks: Int): Int {
+        var lo = 0
+        var hi = size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (_ticks[mid] <= ticks)
+                lo = mid + 1
+            else
+                hi = mid
+        }
+        return lo
+    }
+
+    /**
+     * Call the given function for the index of every event in the tick range [fromTicks, toTicks).
+     *
+     * The buffer has to be sorted for this to work.
+     *
+     * @param fromTicks First tick of the range.
+     * @param toTicks First tick after the range.
+     * @param action The function to call with the event index.
+     */
+    inline fun forEachInRange(fromTicks: Int, toTicks: Int, action: (Int) -> Unit) {
+        val end = lowerBound(toTicks)
+        for (i in lowerBound(fromTicks) until end)
+            action(i)
+    }
+
+    /**
+     * Checks if the events are sorted by their time stamps.
+     */
+    fun isSorted(from: Int = 0, to: Int = size): Boolean {
+        for (i in from + 1 until to) {
+            if (_ticks[i - 1] > _ticks[i])
+                return false
+        }
+        return true
+    }
+
+    /**
+     * Sort the events by their time stamps.
+     *
+     * The sort is stable so events with the same time stamp keep their order (a Note Off stays in
+     * front of a following Note On). No objects are created except for the scratch space on the
+     * first call.
+     *
+     * @param from Index of the first event to sort.
+     * @param to Index after the last event to sort.
+     */
+    fun sort(from: Int = 0, to: Int = size) {
+
+        // Nothing to do?
+        if (isSorted(from, to))
+            return
+
+        // Small ranges are handled with an insertion sort:
+        val count = to - from
+        if (count <= 32) {
+            insertionSort(from, to)
+            return
+        }
+
+        // Prepare scratch space:
+        if (sortTicks.size < count) {
+            sortTicks    = IntArray(count)
+            sortOrigins  = IntArray(count)
+            sortMessages = IntArray(count)
+        }
+
+        // Sort small runs first:
+        var run = from
+        while (run < to) {
+            insertionSort(run, minOf(run + 32, to))
+            run += 32
+        }
+
+        // Bottom up merge of the runs:
+        var width = 32
+        while (width < count) {
+            var left = from
+            while (left < to - width) {
+                val mid = left + width
+                val right = minOf(mid + width, to)
+                if (_ticks[mid - 1] > _ticks[mid])
+                    merge(left, mid, right)
+                left += width * 2
+            }
+            width *= 2
+        }
+    }
+
+    /**
+     * Stable insertion sort for small ranges.
+     */
+    private fun insertionSort(from: Int, to: Int) {
+        for (i in from + 1 until to) {
+            val t = _ticks[i]
+            if (_ticks[i - 1] <= t)
+                continue
+            val o = _origins[i]
+            val m = _messages[i]
+            var j = i - 1
+            while (j >= from && _ticks[j] > t) {
+                _ticks[j + 1]    = _ticks[j]
+                _origins[j + 1]  = _origins[j]
+                _messages[j + 1] = _messages[j]
+                j--
+            }
+            _ticks[j + 1]    = t
+            _origins[j + 1]  = o
+            _messages[j + 1] = m
+        }
+    }
+
+    /**
+     * Stable merge of the sorted ranges [left, mid) and [mid, right).
+     */
+    private fun merge(left: Int, mid: Int, right: Int) {
+
+        // Move the left half out of the way:
+        val leftCount = mid - left
+        System.arraycopy(_ticks,    left, sortTicks,    0, leftCount)
+        System.arraycopy(_origins,  left, sortOrigins,  0, leftCount)
+        System.arraycopy(_messages, left, sortMessages, 0, leftCount)
+
+        // Merge back into place:
+        var i = 0
+        var j = mid
+        var k = left
+        while (i < leftCount && j < right) {
+            if (_ticks[j] < sortTicks[i]) {
+                _ticks[k]    = _ticks[j]
+                _origins[k]  = _origins[j]
+                _messages[k] = _messages[j]
+                j++
+            } else {
+                _ticks[k]    = sortTicks[i]
+                _origins[k]  = sortOrigins[i]
+                _messages[k] = sortMessages[i]
+                i++
+            }
+            k++
+        }
+
+        // Copy what's left from the left half (the right half is already in place):
+        val rest = leftCount - i
+        System.arraycopy(sortTicks,    i, _ticks,    k, rest)
+        System.arraycopy(sortOrigins,  i, _origins,  k, rest)
+        System.arraycopy(sortMessages, i, _messages, k, rest)
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Secondary indexes over an event buffer.
+ *
+ * For every message type and channel, every note of every channel and every controller of every
+ * channel a posting list with the indices of the matching events is kept. Queries like "all Note
+ * Ons on channel 10 between two ticks" or "every sustain pedal change" only touch the matching
+ * events instead of scanning the whole buffer.
+ *
+ * The index is built incrementally: call update() after events were appended to the buffer (eg
+ * while recording) and only the new events are indexed. The buffer has to be sorted and events
+ * must only be appended. After other changes (sorting, quantizing, removing) call rebuild().
+ *
+ * Note messages (Note On, Note Off, Polyphonic Key Pressure) are indexed by their note, control
+ * changes by their controller. The type index uses the status nibble, so Note Ons with velocity 0
+ * are found as Note On. System messages are indexed as type SystemExclusive with the low nibble
+ * of the status byte as channel.
+ *
+ * @param buffer The indexed buffer.
+ */
+class MIDIEventIndex constructor(val buffer: MIDIEventBuffer) {
+
+    /**
+     * The posting lists (allocated on first use).
+     */
+    private val lists = arrayOfNulls<IntArray>(KEYS)
+
+    /**
+     * Number of entries of each posting list.
+     */
+    private val sizes = IntArray(KEYS)
+
+    /**
+     * Number of buffer events that are indexed.
+     */
+    var indexedCount = 0
+        private set
+
+    /**
+     * Index the events that were appended since the last update.
+     */
+    fun update() {
+        for (i in indexedCount until buffer.size) {
+            val message = buffer.messageAt(i)
+            val status = PackedMIDIMessage.status(message)
+            if (status < 0x80)
+                continue
+            add(((status shr 4) - 8) * 16 + (status and 0x0F), i)
+            val channel = status and 0x0F
+            when (status and 0xF0) {
+                0x80, 0x90, 0xA0 -> add(NOTE_KEYS + (channel shl 7) + PackedMIDIMessage.data1(message), i)
+                0xB0 -> add(CONTROLLER_KEYS + (channel shl 7) + PackedMIDIMessage.data1(message), i)
+            }
+        }
+        indexedCount = buffer.size
+    }
+
+    /**
+     * Drop the index and index the whole buffer again.
+     */
+    fun rebuild() {
+        sizes.fill(0)
+        indexedCount = 0
+        update()
+    }
+
+    /**
+     * Call a function for all events of a type and channel in a tick range.
+     *
+     * @param type The message type.
+     * @param channel The channel.
+     * @param fromTicks First tick of the range.
+     * @param toTicks First tick after the range.
+     * @param action The function to call with the buffer index of each event.
+     */
+    inline fun forEachOfType(type: MIDIMessage.MessageType, channel: Int, fromTicks: Int = 0,
+                             toTicks: Int = Int.MAX_VALUE, action: (Int) -> Unit) =
+        forEachInList(typeKey(type, channel), fromTicks, toTicks, action)
+
+    /**
+     * Call a function for all note messages of a note in a tick range.
+     *
+     * @param channel The channel.
+     * @param note The note number.
+     * @param fromTicks First tick of the range.
+     * @param toTicks First tick after the range.
+     * @param action The function to call with the buffer index of each event.
+     */
+    inline fun forEachOfNote(channel: Int, note: Int, fromTicks: Int = 0, toTicks: Int = Int.MAX_VALUE,
+                             action: (Int) -> Unit) =
+        forEachInList(NOTE_KEYS + (channel shl 7) + note, fromTicks, toTicks, action)
+
+    /**
+     * Call a function for all changes of a controller in a tick range.
+     *
+     * @param channel The channel.
+     * @param controller The controller number.
+     * @param fromTicks First tick of the range.
+     * @param toTicks First tick after the range.
+     * @param action The function to call with the buffer index of each event.
+     */
+    inline fun forEachOfController(channel: Int, controller: Int, fromTicks: Int = 0,
+                                   toTicks: Int = Int.MAX_VALUE, action: (Int) -> Unit) =
+        forEachInList(CONTROLLER_KEYS + (channel shl 7) + controller, fromTicks, toTicks, action)
+
+    /**
+     * Number of events of a type and channel in a tick range.
+     */
+    fun countOfType(type: MIDIMessage.MessageType, channel: Int, fromTicks: Int = 0, toTicks: Int = Int.MAX_VALUE) =
+        countInList(typeKey(type, channel), fromTicks, toTicks)
+
+    /**
+     * Number of note messages of a note in a tick range.
+     */
+    fun countOfNote(channel: Int, note: Int, fromTicks: Int = 0, toTicks: Int = Int.MAX_VALUE) =
+        countInList(NOTE_KEYS + (channel shl 7) + note, fromTicks, toTicks)
+
+    /**
+     * Number of changes of a controller in a tick range.
+     */
+    fun countOfController(channel: Int, controller: Int, fromTicks: Int = 0, toTicks: Int = Int.MAX_VALUE) =
+        countInList(CONTROLLER_KEYS + (channel shl 7) + controller, fromTicks, toTicks)
+
+    /**
+     * Call a function for the entries of a posting list in a tick range.
+     */
+    @PublishedApi
+    internal inline fun forEachInList(key: Int, fromTicks: Int, toTicks: Int, action: (Int) -> Unit) {
+        val list = listAt(key) ?: return
+        val end = lowerBound(key, toTicks)
+        for (i in lowerBound(key, fromTicks) until end)
+            action(list[i])
+    }
+
+    /**
+     * Get a posting list.
+     */
+    @PublishedApi
+    internal fun listAt(key: Int) = lists[key]
+
+    /**
+     * Find the first entry of a posting list at or after the given tick.
+     */
+    @PublishedApi
+    internal fun lowerBound(key: Int, ticks: Int): Int {
+        val list = lists[key] ?: return 0
+        var lo = 0
+        var hi = sizes[key]
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (buffer.ticksAt(list[mid]) < ticks)
+                lo = mid + 1
+            else
+                hi = mid
+        }
+        return lo
+    }
+
+    /**
+     * Map a message type and channel to its posting list.
+     */
+    @PublishedApi
+    internal fun typeKey(type: MIDIMessage.MessageType, channel: Int) =
+        (((type.msg.toInt() and 0xF0) shr 4) - 8) * 16 + (channel and 0x0F)
+
+    /**
+     * Number of entries of a posting list in a tick range.
+     */
+    private fun countInList(key: Int, fromTicks: Int, toTicks: Int) =
+        maxOf(lowerBound(key, toTicks) - lowerBound(key, fromTicks), 0)
+
+    /**
+     * Append an event to a posting list.
+     */
+    private fun add(key: Int, index: Int) {
+        var list = lists[key]
+        val size = sizes[key]
+        if (list == null) {
+            list = IntArray(16)
+            lists[key] = list
+        } else if (size == list.size) {
+            list = list.copyOf(size * 2)
+            lists[key] = list
+        }
+        list[size] = index
+        sizes[key] = size + 1
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Layout of the posting lists: 8 types x 16 channels, then 16 channels x 128 notes and
+         * 16 channels x 128 controllers.
+         */
+        @PublishedApi
+        internal const val NOTE_KEYS = 8 * 16
+        @PublishedApi
+        internal const val CONTROLLER_KEYS = NOTE_KEYS + 16 * 128
+        private const val KEYS = CONTROLLER_KEYS + 16 * 128
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Merges several time sorted event buffers into one time sorted stream.
+ */
+object MIDIEventMerger {
+
+    /**
+     * K-way merge of sorted event buffers.
+     *
+     * A binary heap of the source indices picks the next event, so the costs are O(n log k) for n
+     * events in k buffers. Events with the same time stamp are taken from the source with the lower
+     * index first, so the result doesn't depend on the order the sources were filled in.
+     *
+     * @param sources The sorted source buffers.
+     * @param dest The buffer that receives the merged events (they are appended).
+     */
+    fun merge(sources: Array<MIDIEventBuffer>, dest: MIDIEventBuffer) {
+
+        // Reserve space:
+        var total = 0
+        for (source in sources)
+            total += source.size
+        dest.ensureCapacity(dest.size + total)
+
+        // Fill the heap with all non empty sources:
+        val positions = IntArray(sources.size)
+        val heap = IntArray(sources.size)
+        var heapSize = 0
+        for (i in sources.indices) {
+            if (sources[i].isEmpty())
+                continue
+            heap[heapSize] = i
+            siftUp(heap, heapSize, sources, positions)
+            heapSize++
+        }
+
+        // Take the earliest event until all sources are empty:
+        while (heapSize > 0) {
+            val s = heap[0]
+            val source = sources[s]
+            val p = positions[s]
+            dest.append(source.ticksAt(p), source.originAt(p), source.messageAt(p))
+
+            // Advance the source or remove it from the heap:
+            positions[s] = p + 1
+            if (p + 1 >= source.size) {
+                heapSize--
+                heap[0] = heap[heapSize]
+            }
+            if (heapSize > 0)
+                siftDown(heap, heapSize, sources, positions)
+        }
+    }
+
+    /**
+     * Checks if the current event of source a has to come before the one of source b.
+     */
+    private fun less(a: Int, b: Int, sources: Array<MIDIEventBuffer>, positions: IntArray): Boolean {
+        val ta = sources[a].ticksAt(positions[a])
+        val tb = sources[b].ticksAt(positions[b])
+        return ta < tb || (ta == tb && a < b)
+    }
+
+    /**
+     * Move the heap entry at the given index up to its place.
+     */
+    private fun siftUp(heap: IntArray, index: Int, sources: Array<MIDIEventBuffer>, positions: IntArray) {
+        var i = index
+        val entry = heap[i]
+        while (i > 0) {
+            val parent = (i - 1) shr 1
+            if (!less(entry, heap[parent], sources, positions))
+                break
+            heap[i] = heap[parent]
+            i = parent
+        }
+        heap[i] = entry
+    }
+
+    /**
+     * Move the heap root down to its place.
+     */
+    private fun siftDown(heap: IntArray, size: Int, sources: Array<MIDIEventBuffer>, positions: IntArray) {
+        var i = 0
+        val entry = heap[0]
+        while (true) {
+            var child = i * 2 + 1
+            if (child >= size)
+                break
+            if (child + 1 < size && less(heap[child + 1], heap[child], sources, positions))
+                child++
+            if (!less(heap[child], entry, sources, positions))
+                break
+            heap[i] = heap[child]
+            i = child
+        }
+        heap[i] = entry
+    }
+}
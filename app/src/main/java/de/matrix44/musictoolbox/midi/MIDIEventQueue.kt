@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Wait free single producer / single consumer ring buffer for MIDI events.
+ *
+ * This is used to hand over events from one thread (e.g. the thread that receives hardware MIDI)
+ * to another one (e.g. the UI or an audio renderer) without locks. Exactly one thread may call
+ * offer() and exactly one (other) thread may call the drain functions.
+ *
+ * The events are stored as ticks, origin and packed message in primitive arrays. If the consumer
+ * can't keep up, new events are dropped and counted in overflowCount.
+ *
+ * @param capacity Maximum number of queued events. Rounded up to the next power of two.
+ */
+class MIDIEventQueue constructor(capacity: Int) {
+
+    /**
+     * The real capacity of the queue.
+     */
+    val capacity = Integer.highestOneBit(maxOf(capacity, 2) - 1) shl 1
+
+    /**
+     * Mask for mapping the read/write counters to array indices.
+     */
+    private val mask = this.capacity - 1
+
+    /**
+     * Storage for the events.
+     */
+    private val ticks = IntArray(this.capacity)
+    private val origins = IntArray(this.capacity)
+    private val messages = IntArray(this.capacity)
+
+    /**
+     * Number of events read so far (written by the consumer only).
+     */
+    private val readCount = AtomicLong()
+
+    /**
+     * Number of events written so far (written by the producer only).
+     */
+    private val writeCount = AtomicLong()
+
+    /**
+     * The producer's last known value of readCount.
+     */
+    private var cachedReadCount = 0L
+
+    /**
+     * Number of events that were dropped because the queue was full.
+     */
+    @Volatile
+    var overflowCount = 0L
+        private set
+
+    /**
+     * Approximate number of queued events.
+     */
+    val size: Int
+        get() = (writeCount.get() - readCount.get()).toInt()
+
+    /**
+     * Add an event to the queue (producer thread only).
+     *
+     * @param ticks Time stamp of the event.
+     * @param origin Origin of the event.
+     * @param message The packed message.
+     * @return False if the queue was full and the event was dropped.
+     */
+    fun offer(ticks: Int, origin: Int, message: Int): Boolean {
+
+        // Check for space, the consumer's counter is only read if the cached value says full:
+        val write = writeCount.get()
+        if (write - cachedReadCount >= capacity) {
+            cachedReadCount = readCount.get()
+            if (write - cachedReadCount >= capacity) {
+                overflowCount++
+                return false
+            }
+        }
+
+        // Store the event and publish it:
+        val i = (write and mask.toLong()).toInt()
+        this.ticks[i]    = ticks
+        this.origins[i]  = origin
+        this.messages[i] = message
+        writeCount.lazySet(write + 1)
+        return true
+    }
+
+    /**
+     * Pass queued events to a sink (consumer thread only).
+     *
+     * @param sink The receiver of the events.
+     * @param maxEvents Maximum number of events to drain.
+     * @return The number of drained events.
+     */
+    fun drain(sink: MIDIEventSink, maxEvents: Int = Int.MAX_VALUE): Int {
+        val read = readCount.get()
+        val count = minOf(writeCount.get() - read, maxEvents.toLong()).toInt()
+        for (n in 0 until count) {
+            val i = ((read + n) and mask.toLong()).toInt()
+            sink.onEvent(ticks[i], origins[i], messages[i])
+        }
+        readCount.lazySet(read + count)
+        return count
+    }
+
+    /**
+     * Move queued events into an event buffer (consumer thread only).
+     *
+     * @param buffer The buffer that receives the events (they are appended).
+     * @param maxEvents Maximum number of events to drain.
+     * @return The number of drained events.
+     */
+    fun drainTo(buffer: MIDIEventBuffer, maxEvents: Int = Int.MAX_VALUE): Int {
+        val read = readCount.get()
+        val count = minOf(writeCount.get() - read, maxEvents.toLong()).toInt()
+        buffer.ensureCapacity(buffer.size + count)
+        for (n in 0 until count) {
+            val i = ((read + n) and mask.toLong()).toInt()
+            buffer.append(ticks[i], origins[i], messages[i])
+        }
+        readCount.lazySet(read + count)
+        return count
+    }
+
+    /**
+     * Reset the overflow counter.
+     *
+     * This should be called from the producer thread.
+     */
+    fun resetOverflowCount() {
+        overflowCount = 0
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Receiver of MIDI events in their packed form.
+ *
+ * This is the allocation free counterpart of passing MIDIEvent objects around. Queues, routers,
+ * schedulers etc all deliver their events through this interface.
+ */
+interface MIDIEventSink {
+
+    /**
+     * Called for each event.
+     *
+     * @param ticks Time stamp of the event.
+     * @param origin Origin of the event (see MIDIEvent).
+     * @param message The packed message (see PackedMIDIMessage).
+     */
+    fun onEvent(ticks: Int, origin: Int, message: Int)
+}
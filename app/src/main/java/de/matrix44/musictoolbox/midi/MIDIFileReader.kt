@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Reader for Standard MIDI Files (format 0, 1 and 2).
+ *
+ * The file is memory mapped and only the chunk headers are parsed when the reader is created. The
+ * events of a track are decoded on demand by a TrackCursor (allocation free) or by the iterator
+ * returned from events() (one MIDIEvent per event).
+ *
+ * see https://www.midi.org/specifications-old/item/standard-midi-files-smf for the file format.
+ *
+ * @param file The file to read.
+ */
+class MIDIFileReader constructor(file: File) {
+
+    /**
+     * The mapped file contents.
+     */
+    private val data: ByteBuffer
+
+    /**
+     * Start positions of the track data inside the file.
+     */
+    private val trackOffsets: IntArray
+
+    /**
+     * Lengths of the track data.
+     */
+    private val trackLengths: IntArray
+
+    /**
+     * The file format (0 = single track, 1 = simultaneous tracks, 2 = independent tracks).
+     */
+    val format: Int
+
+    /**
+     * Number of tracks found in the file.
+     */
+    val trackCount: Int
+        get() = trackOffsets.size
+
+    /**
+     * The raw time division from the header.
+     *
+     * Positive values are ticks per quarter note. Negative values are SMPTE based (upper byte is
+     * the negative frame rate, lower byte the ticks per frame).
+     */
+    val division: Int
+
+    init {
+
+        // Map the whole file, the mapping stays valid after the channel is closed:
+        data = RandomAccessFile(file, "r").use {
+            it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+        }
+
+        // Check header:
+        if (data.limit() < 14 || data.getInt(0) != CHUNK_MTHD)
+            throw IOException("Not a standard MIDI file")
+        val headerLength = data.getInt(4)
+        if (headerLength < 6)
+            throw IOException("Invalid MIDI file header")
+        format   = data.getShort(8).toInt() and 0xFFFF
+        division = data.getShort(12).toInt()
+        val declaredTracks = data.getShort(10).toInt() and 0xFFFF
+
+        // Collect the track chunks and skip everything else:
+        val offsets = IntArray(declaredTracks)
+        val lengths = IntArray(declaredTracks)
+        var count = 0
+        var pos = 8 + headerLength
+        while (count < declaredTracks && pos + 8 <= data.limit()) {
+            val id = data.getInt(pos)
+            val length = data.getInt(pos + 4)
+            if (length < 0)
+                break
+            pos += 8
+            if (id == CHUNK_MTRK) {
+                offsets[count] = pos
+                lengths[count] = minOf(length, data.limit() - pos) // Truncated files are common.
+                count++
+            }
+            pos += length
+        }
+        trackOffsets = offsets.copyOf(count)
+        trackLengths = lengths.copyOf(count)
+    }
+
+    /**
+     * Create a cursor for the events of a track.
+     *
+     * Each cursor has its own position, so several tracks can be decoded at the same time (also
+     * from different threads).
+     *
+     * @param track Index of the track.
+     */
+    fun track(track: Int) =
+        TrackCursor(data, trackOffsets[track], trackOffsets[track] + trackLengths[track], track)
+
+    /**
+     * Lazy iterator over the events of a track.
+     *
+     * The ticks of the returned events are the delta from the previous event and the origin is the
+     * track number. Meta events are skipped (their delta times are added to the next event).
+     *
+     * @param track Index of the track.
+     */
+    fun events(track: Int): Iterator<MIDIEvent> = object : Iterator<MIDIEvent> {
+
+        val cursor = track(track)
+        var nextEvent: MIDIEvent? = null
+        var pendingDelta = 0
+
+        override fun hasNext(): Boolean {
+            if (nextEvent == null)
+                nextEvent = fetch()
+            return nextEvent != null
+        }
+
+        override fun next(): MIDIEvent {
+            if (!hasNext())
+                throw NoSuchElementException()
+            val event = nextEvent!!
+            nextEvent = null
+            return event
+        }
+
+        fun fetch(): MIDIEvent? {
+            loop@ while (cursor.next()) {
+                pendingDelta += cursor.delta
+                val isMessage = cursor.kind == TrackCursor.MESSAGE && PackedMIDIMessage.isChannelMessage(cursor.message)
+                val isSysEx = cursor.kind == TrackCursor.SYSEX && cursor.status == 0xF0
+                val message = when {
+                    isMessage -> PackedMIDIMessage.toMessage(cursor.message)
+                    isSysEx -> MIDIMessage.systemExclusive(cursor.sysExPayload())
+                    else -> continue@loop
+                }
+                val event = MIDIEvent(message, pendingDelta, cursor.trackIndex)
+                pendingDelta = 0
+                return event
+            }
+            return null
+        }
+    }
+
+    /**
+     * Decode all short messages of a track into an event buffer.
+     *
+     * The events are appended with absolute ticks and the track number as origin. Meta and system
+     * exclusive events are skipped.
+     *
+     * @param track Index of the track.
+     * @param buffer The buffer that receives the events.
+     */
+    fun decodeTrack(track: Int, buffer: MIDIEventBuffer) {
+        val cursor = track(track)
+        while (cursor.next()) {
+            if (cursor.kind == TrackCursor.MESSAGE)
+                buffer.append(cursor.ticks, track, cursor.message)
+        }
+    }
+
+    /**
+     * Decode all tracks and merge them into one time ordered event buffer.
+     *
+     * Every track is decoded on its own task of the executor, then the tracks are combined by a
+     * k-way merge (see MIDIEventMerger). The origin of each event is its track number. This is
+     * mostly useful for format 1 files, the tracks of format 2 files are independent sequences.
+     *
+     * @param executor Executor for the decoding tasks. If null a temporary thread pool with one
+     *                 thread per CPU core is used.
+     * @return The merged events.
+     */
+    fun decodeMerged(executor: Executor? = null): MIDIEventBuffer {
+
+        // Prepare one buffer per track, the track size is a good estimate for the event count:
+        val buffers = Array(trackCount) { MIDIEventBuffer(trackLengths[it] / 3) }
+
+        // Single tracks don't need any threading:
+        if (trackCount == 1) {
+            decodeTrack(0, buffers[0])
+            return buffers[0]
+        }
+
+        // Get a thread pool:
+        val pool = executor ?: Executors.newFixedThreadPool(
+            minOf(trackCount, Runtime.getRuntime().availableProcessors()).coerceAtLeast(1))
+
+        // Decode all tracks in parallel:
+        val done = CountDownLatch(trackCount)
+        val error = AtomicReference<Throwable>()
+        try {
+            for (track in 0 until trackCount) {
+                pool.execute {
+                    try {
+                        decodeTrack(track, buffers[track])
+                    } catch (e: Throwable) {
+                        error.compareAndSet(null, e)
+                    } finally {
+                        done.countDown()
+                    }
+                }
+            }
+            done.await()
+        } finally {
+            if (executor == null)
+                (pool as ExecutorService).shutdown()
+        }
+        error.get()?.let { throw IOException("Could not decode MIDI file", it) }
+
+        // Merge the tracks:
+        val result = MIDIEventBuffer(buffers.sumBy { it.size })
+        MIDIEventMerger.merge(buffers, result)
+        return result
+    }
+
+    /**
+     * Allocation free decoder for the events of one track.
+     *
+     * Call next() to advance to the next event and read the properties of the current event.
+     */
+    class TrackCursor internal constructor(
+        private val data: ByteBuffer,
+        private val start: Int,
+        private val end: Int,
+
+        /**
+         * Index of the track that is decoded.
+         */
+        val trackIndex: Int
+    ) {
+
+        /**
+         * Read position inside the file.
+         */
+        private var position = start
+
+        /**
+         * Running status of the track.
+         */
+        private var runningStatus = 0
+
+        /**
+         * Ticks from the previous event to the current one.
+         */
+        var delta = 0
+            private set
+
+        /**
+         * Absolute ticks of the current event from the start of the track.
+         */
+        var ticks = 0
+            private set
+
+        /**
+         * Kind of the current event (MESSAGE, SYSEX or META).
+         */
+        var kind = 0
+            private set
+
+        /**
+         * Status byte of the current event (0xFF for meta events).
+         */
+        var status = 0
+            private set
+
+        /**
+         * The packed message if the current event is a short message.
+         */
+        var message = PackedMIDIMessage.NONE
+            private set
+
+        /**
+         * The meta event type if the current event is a meta event.
+         */
+        var metaType = -1
+            private set
+
+        /**
+         * Position of the system exclusive or meta event data inside the file.
+         */
+        var dataOffset = 0
+            private set
+
+        /**
+         * Length of the system exclusive or meta event data.
+         */
+        var dataLength = 0
+            private set
+
+        /**
+         * Checks if the current event is the end of track meta event.
+         */
+        val isEndOfTrack: Boolean
+            get() = kind == META && metaType == META_END_OF_TRACK
+
+        /**
+         * The tempo in microseconds per quarter note if the current event is a Set Tempo meta
+         * event, -1 otherwise.
+         */
+        val tempo: Int
+            get() {
+                if (kind != META || metaType != META_SET_TEMPO || dataLength < 3)
+                    return -1
+                return ((dataByte(0) shl 16) or (dataByte(1) shl 8) or dataByte(2))
+            }
+
+        /**
+         * Read a byte of the system exclusive or meta event data.
+         *
+         * @param index Index of the byte inside the event data.
+         */
+        fun dataByte(index: Int) = data.get(dataOffset + index).toInt() and 0xFF
+
+        /**
+         * Copy the system exclusive or meta event data into an array.
+         *
+         * @param dest The destination array. Must have room for dataLength bytes.
+         * @param offset Position of the first byte inside the destination array.
+         * @return The number of bytes copied.
+         */
+        fun copyData(dest: ByteArray, offset: Int = 0): Int {
+            for (i in 0 until dataLength)
+                dest[offset + i] = data.get(dataOffset + i)
+            return dataLength
+        }
+
+        /**
+         * The payload of the current system exclusive event without the trailing 0xF7.
+         *
+         * This allocates a new array.
+         */
+        fun sysExPayload(): ByteArray {
+            var length = dataLength
+            if (length > 0 && dataByte(length - 1) == 0xF7)
+                length--
+            val bytes = ByteArray(length)
+            for (i in 0 until length)
+                bytes[i] = data.get(dataOffset + i)
+            return bytes
+        }
+
+        /**
+         * Start again at the first event of the track.
+         */
+        fun rewind() {
+            position = start
+            runningStatus = 0
+            ticks = 0
+        }
+
+        /**
+         * Advance to the next event.
+         *
+         * @return False if the end of the track was reached.
+         */
+        fun next(): Boolean {
+
+            // End of data?
+            if (position >= end)
+                return false
+
+            // Read delta time:
+            val newDelta = readVariableLength()
+            if (newDelta < 0 || position >= end) {
+                position = end
+                return false
+            }
+            delta = newDelta
+            ticks += newDelta
+
+            // Read status, data bytes without status use the running status:
+            var b = data.get(position).toInt() and 0xFF
+            if (b < 0x80) {
+                if (runningStatus == 0) {
+                    position = end // Corrupt track.
+                    return false
+                }
+                b = runningStatus
+            } else
+                position++
+            status = b
+
+            // Meta event:
+            if (b == 0xFF) {
+                kind = META
+                metaType = if (position < end) data.get(position++).toInt() and 0xFF else -1
+                return readData()
+            }
+
+            // System exclusive event or escaped data:
+            if (b == 0xF0 || b == 0xF7) {
+                kind = SYSEX
+                runningStatus = 0
+                return readData()
+            }
+
+            // Short message:
+            kind = MESSAGE
+            val size = PackedMIDIMessage.sizeOfStatus(b)
+            if (size == 0 || position + size - 1 > end) {
+                position = end
+                return false
+            }
+            if (b < 0xF0)
+                runningStatus = b
+            val data1 = if (size > 1) data.get(position).toInt() else 0
+            val data2 = if (size > 2) data.get(position + 1).toInt() else 0
+            position += size - 1
+            message = PackedMIDIMessage.pack(b, data1, data2)
+            return true
+        }
+
+        /**
+         * Read the length prefixed data of a system exclusive or meta event.
+         */
+        private fun readData(): Boolean {
+            val length = readVariableLength()
+            if (length < 0 || position + length > end) {
+                position = end
+                return false
+            }
+            dataOffset = position
+            dataLength = length
+            position += length
+            return true
+        }
+
+        /**
+         * Read a variable length quantity (7 bits per byte, highest bit marks continuation).
+         *
+         * @return The value or -1 if the data is corrupt.
+         */
+        private fun readVariableLength(): Int {
+            var value = 0
+            for (i in 0 until 4) {
+                if (position >= end)
+                    return -1
+                val b = data.get(position++).toInt()
+                value = (value shl 7) or (b and 0x7F)
+                if (b and 0x80 == 0)
+                    return value
+            }
+            return -1
+        }
+
+        /**
+         * Event kinds.
+         */
+        companion object {
+
+            /**
+             * A short MIDI message.
+             */
+            const val MESSAGE = 0
+
+            /**
+             * A system exclusive message (status 0xF0) or escaped data (status 0xF7).
+             */
+            const val SYSEX = 1
+
+            /**
+             * A meta event.
+             */
+            const val META = 2
+        }
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * "MThd" chunk ID.
+         */
+        const val CHUNK_MTHD = 0x4D546864
+
+        /**
+         * "MTrk" chunk ID.
+         */
+        const val CHUNK_MTRK = 0x4D54726B
+
+        /**
+         * Meta event type for Set Tempo.
+         */
+        const val META_SET_TEMPO = 0x51
+
+        /**
+         * Meta event type for End of Track.
+         */
+        const val META_END_OF_TRACK = 0x2F
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import java.io.Closeable
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+
+/**
+ * Streaming writer for Standard MIDI Files.
+ *
+ * All data goes through one fixed size buffer straight to the output, tracks are never built in
+ * memory. Delta times are encoded as variable length quantities and running status can be applied
+ * to the channel messages.
+ *
+ * When writing to a FileChannel the MTrk chunk lengths and the track count in the header are
+ * patched when a track or the file is finished. This allows to write tracks event by event with
+ * beginTrack(), writeEvent() and endTrack(), e.g. while a recording is saved. Plain OutputStreams
+ * can not be patched, so the track count has to be known up front and tracks can only be written
+ * as a whole with writeTrack(). In this case the track length is calculated by a counting pass over
+ * the events before the actual data is written.
+ */
+class MIDIFileWriter private constructor(
+    private val out: WritableByteChannel,
+    private val file: FileChannel?,
+
+    /**
+     * The file format (0 = single track, 1 = simultaneous tracks, 2 = independent tracks).
+     */
+    val format: Int,
+
+    /**
+     * Ticks per quarter note.
+     */
+    val division: Int,
+
+    /**
+     * Track count written into the header (patched on close() for FileChannels).
+     */
+    private val declaredTracks: Int,
+    bufferSize: Int,
+
+    /**
+     * Enable running status compression for channel messages.
+     */
+    var runningStatus: Boolean
+) : Closeable {
+
+    /**
+     * Create a writer for a file channel.
+     *
+     * The file is written starting at the current position of the channel.
+     *
+     * @param channel The destination channel.
+     * @param format The file format.
+     * @param division Ticks per quarter note.
+     * @param runningStatus Enable running status compression.
+     * @param bufferSize Size of the write buffer in bytes.
+     */
+    constructor(
+        channel: FileChannel,
+        format: Int = 1,
+        division: Int = 480,
+        runningStatus: Boolean = true,
+        bufferSize: Int = 8192
+    ) : this(channel, channel, format, division, 0, bufferSize, runningStatus)
+
+    /**
+     * Create a writer for an output stream.
+     *
+     * @param stream The destination stream.
+     * @param trackCount Number of tracks that will be written.
+     * @param format The file format.
+     * @param division Ticks per quarter note.
+     * @param runningStatus Enable running status compression.
+     * @param bufferSize Size of the write buffer in bytes.
+     */
+    constructor(
+        stream: OutputStream,
+        trackCount: Int,
+        format: Int = 1,
+        division: Int = 480,
+        runningStatus: Boolean = true,
+        bufferSize: Int = 8192
+    ) : this(Channels.newChannel(stream), null, format, division, trackCount, bufferSize, runningStatus)
+
+    /**
+     * The write buffer.
+     */
+    private val buffer = ByteBuffer.allocate(maxOf(bufferSize, 64))
+
+    /**
+     * Small buffer for patching lengths.
+     */
+    private val patchBuffer = ByteBuffer.allocate(4)
+
+    /**
+     * File position of the header (FileChannel only).
+     */
+    private val headerPosition = file?.position() ?: 0L
+
+    /**
+     * File position of the length field of the current track (FileChannel only).
+     */
+    private var trackLengthPosition = -1L
+
+    /**
+     * Is a track open?
+     */
+    private var inTrack = false
+
+    /**
+     * Number of bytes written to the current track.
+     */
+    private var trackLength = 0L
+
+    /**
+     * If set bytes are only counted but not written.
+     */
+    private var counting = false
+
+    /**
+     * Status byte of the last written channel message in the current track.
+     */
+    private var lastStatus = 0
+
+    /**
+     * Sum of the deltas of skipped events in the current track.
+     */
+    private var skippedDelta = 0
+
+    /**
+     * Number of tracks written so far.
+     */
+    var trackCount = 0
+        private set
+
+    init {
+
+        // Write header:
+        putInt(MIDIFileReader.CHUNK_MTHD)
+        putInt(6)
+        putShort(format)
+        putShort(declaredTracks)
+        putShort(division)
+    }
+
+    /**
+     * Start a new track (FileChannel only).
+     */
+    fun beginTrack() {
+        check(file != null) { "Event by event writing needs a FileChannel" }
+        check(!inTrack) { "A track is still open" }
+
+        // Write chunk header with a dummy length:
+        putInt(MIDIFileReader.CHUNK_MTRK)
+        flush()
+        trackLengthPosition = file.position()
+        putInt(0)
+        startTrack()
+    }
+
+    /**
+     * Write a short message to the current track.
+     *
+     * Only channel messages can be stored in MIDI files. System common and realtime messages (eg
+     * clock or active sensing from a recording) are skipped, their delta is added to the next
+     * event.
+     *
+     * @param delta Ticks since the previous event.
+     * @param message The packed message.
+     */
+    fun writeEvent(delta: Int, message: Int) {
+        check(inTrack) { "No open track" }
+
+        // Invalid and system messages can't be written:
+        val status = PackedMIDIMessage.status(message)
+        val size = PackedMIDIMessage.sizeOfStatus(status)
+        if (size == 0 || status >= 0xF0) {
+            require(delta >= 0) { "Invalid delta time $delta" }
+            skippedDelta += delta
+            return
+        }
+
+        // Write delta and status:
+        putDelta(delta)
+        if (!runningStatus || status != lastStatus)
+            putByte(status)
+        lastStatus = status
+
+        // Write data:
+        if (size > 1)
+            putByte(PackedMIDIMessage.data1(message))
+        if (size > 2)
+            putByte(PackedMIDIMessage.data2(message))
+    }
+
+    /**
+     * Write a system exclusive message to the current track.
+     *
+     * @param delta Ticks since the previous event.
+     * @param data Array that holds the payload (without 0xF0 and 0xF7).
+     * @param offset Position of the first byte of the payload.
+     * @param length Number of bytes of the payload.
+     */
+    fun writeSysEx(delta: Int, data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+        check(inTrack) { "No open track" }
+        putDelta(delta)
+        putByte(0xF0)
+        putVariableLength(length + 1)
+        putBytes(data, offset, length)
+        putByte(0xF7)
+        lastStatus = 0
+    }
+
+    /**
+     * Write a pooled system exclusive message to the current track.
+     *
+     * @param delta Ticks since the previous event.
+     * @param message The message to write.
+     */
+    fun writeSysEx(delta: Int, message: SysExMessage) {
+        check(inTrack) { "No open track" }
+        putDelta(delta)
+        putByte(0xF0)
+        putVariableLength(message.size + 1)
+        for (i in 0 until message.size)
+            putByte(message.byteAt(i))
+        putByte(0xF7)
+        lastStatus = 0
+    }
+
+    /**
+     * Write a meta event to the current track.
+     *
+     * @param delta Ticks since the previous event.
+     * @param type The meta event type.
+     * @param data Array that holds the meta event data.
+     * @param offset Position of the first byte of the data.
+     * @param length Number of bytes of the data.
+     */
+    fun writeMeta(delta: Int, type: Int, data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+        check(inTrack) { "No open track" }
+        putDelta(delta)
+        putByte(0xFF)
+        putByte(type)
+        putVariableLength(length)
+        putBytes(data, offset, length)
+        lastStatus = 0
+    }
+
+    /**
+     * Write a Set Tempo meta event to the current track.
+     *
+     * @param delta Ticks since the previous event.
+     * @param microsPerQuarter The new tempo in microseconds per quarter note.
+     */
+    fun writeTempo(delta: Int, microsPerQuarter: Int) {
+        check(inTrack) { "No open track" }
+        putDelta(delta)
+        putByte(0xFF)
+        putByte(MIDIFileReader.META_SET_TEMPO)
+        putByte(3)
+        putByte(microsPerQuarter shr 16)
+        putByte(microsPerQuarter shr 8)
+        putByte(microsPerQuarter)
+        lastStatus = 0
+    }
+
+    /**
+     * Finish the current track (FileChannel only).
+     *
+     * This writes the End of Track meta event and patches the chunk length.
+     *
+     * @param delta Ticks from the last event to the end of the track.
+     */
+    fun endTrack(delta: Int = 0) {
+        check(file != null && inTrack) { "No open track" }
+        finishTrack(delta)
+
+        // Patch chunk length:
+        flush()
+        patchInt(trackLengthPosition, trackLength.toInt())
+    }
+
+    /**
+     * Write a complete track from an event buffer.
+     *
+     * The ticks in the buffer are absolute and the buffer has to be sorted. System exclusive
+     * messages are not stored in event buffers and will not be written.
+     *
+     * @param events The events to write.
+     * @param from Index of the first event to write.
+     * @param to Index after the last event to write.
+     * @param startTicks Position of the track start. The first delta is taken from here, so the
+     *                   events keep their absolute positions (and tracks stay aligned).
+     */
+    fun writeTrack(events: MIDIEventBuffer, from: Int = 0, to: Int = events.size, startTicks: Int = 0) {
+        writeWholeTrack {
+            var lastTicks = startTicks
+            for (i in from until to) {
+                writeEvent(events.ticksAt(i) - lastTicks, events.messageAt(i))
+                lastTicks = events.ticksAt(i)
+            }
+        }
+    }
+
+    /**
+     * Write a complete track from MIDIEvent objects.
+     *
+     * As in MIDI files the ticks of the events are the delta from the previous event. The events
+     * are iterated twice for OutputStreams.
+     *
+     * @param events The events to write.
+     */
+    fun writeTrack(events: Iterable<MIDIEvent>) {
+        writeWholeTrack {
+            for (event in events) {
+                val message = event.message
+                if (message.message == MIDIMessage.MessageType.SystemExclusive) {
+                    putDelta(event.ticks)
+                    putByte(0xF0)
+                    putVariableLength(message.dataSize)
+                    for (i in 0 until message.dataSize)
+                        putByte(message.dataAt(i))
+                    lastStatus = 0
+                } else
+                    writeEvent(event.ticks, message.pack())
+            }
+        }
+    }
+
+    /**
+     * Flush all buffered data and patch the track count (FileChannel only). The output is closed.
+     *
+     * For OutputStreams the track count in the header can not be patched, so this fails if the
+     * number of written tracks doesn't match the count given to the constructor.
+     */
+    override fun close() {
+        check(!inTrack) { "A track is still open" }
+        flush()
+        if (file != null)
+            patchShort(headerPosition + 10, trackCount)
+        out.close()
+        check(file != null || trackCount == declaredTracks) {
+            "Wrote $trackCount tracks but the header declares $declaredTracks"
+        }
+    }
+
+    /**
+     * Write a whole track through the given writer function.
+     *
+     * FileChannels patch the length afterwards. OutputStreams run the writer twice, the first
+     * pass only counts the bytes.
+     */
+    private inline fun writeWholeTrack(writer: () -> Unit) {
+        check(!inTrack) { "A track is still open" }
+
+        // Seekable output can be patched:
+        if (file != null) {
+            beginTrack()
+            writer()
+            endTrack()
+            return
+        }
+
+        // Counting pass:
+        counting = true
+        startTrack()
+        writer()
+        finishTrack(0)
+        counting = false
+        val length = trackLength
+
+        // Real pass:
+        putInt(MIDIFileReader.CHUNK_MTRK)
+        putInt(length.toInt())
+        startTrack()
+        writer()
+        finishTrack(0)
+    }
+
+    /**
+     * Reset the track state.
+     */
+    private fun startTrack() {
+        inTrack = true
+        trackLength = 0
+        lastStatus = 0
+        skippedDelta = 0
+    }
+
+    /**
+     * Write End of Track and close the track state.
+     */
+    private fun finishTrack(delta: Int) {
+        putDelta(delta)
+        putByte(0xFF)
+        putByte(MIDIFileReader.META_END_OF_TRACK)
+        putByte(0)
+        inTrack = false
+        if (!counting)
+            trackCount++
+    }
+
+    /**
+     * Write a byte.
+     */
+    private fun putByte(value: Int) {
+        trackLength++
+        if (counting)
+            return
+        if (!buffer.hasRemaining())
+            flush()
+        buffer.put(value.toByte())
+    }
+
+    /**
+     * Write a range of bytes.
+     */
+    private fun putBytes(data: ByteArray, offset: Int, length: Int) {
+        for (i in offset until offset + length)
+            putByte(data[i].toInt())
+    }
+
+    /**
+     * Write a big endian 16 bit value.
+     */
+    private fun putShort(value: Int) {
+        putByte(value shr 8)
+        putByte(value)
+    }
+
+    /**
+     * Write a big endian 32 bit value.
+     */
+    private fun putInt(value: Int) {
+        putByte(value shr 24)
+        putByte(value shr 16)
+        putByte(value shr 8)
+        putByte(value)
+    }
+
+    /**
+     * Write the delta time of an event, including the deltas of skipped events.
+     */
+    private fun putDelta(delta: Int) {
+        require(delta >= 0) { "Invalid delta time $delta" }
+        putVariableLength(delta + skippedDelta)
+        skippedDelta = 0
+    }
+
+    /**
+     * Write a variable length quantity (7 bits per byte, highest bit marks continuation).
+     */
+    private fun putVariableLength(value: Int) {
+        require(value in 0..0x0FFFFFFF) { "Invalid variable length value $value" }
+        if (value >= 1 shl 21)
+            putByte(((value shr 21) and 0x7F) or 0x80)
+        if (value >= 1 shl 14)
+            putByte(((value shr 14) and 0x7F) or 0x80)
+        if (value >= 1 shl 7)
+            putByte(((value shr 7) and 0x7F) or 0x80)
+        putByte(value and 0x7F)
+    }
+
+    /**
+     * Write the buffered data to the output.
+     */
+    private fun flush() {
+        buffer.flip()
+        while (buffer.hasRemaining())
+            out.write(buffer)
+        buffer.clear()
+    }
+
+    /**
+     * Overwrite a big endian 32 bit value at the given file position.
+     */
+    private fun patchInt(position: Long, value: Int) {
+        patchBuffer.clear()
+        patchBuffer.putInt(value)
+        patchBuffer.flip()
+        while (patchBuffer.hasRemaining())
+            file!!.write(patchBuffer, position + patchBuffer.position())
+    }
+
+    /**
+     * Overwrite a big endian 16 bit value at the given file position.
+     */
+    private fun patchShort(position: Long, value: Int) {
+        patchBuffer.clear()
+        patchBuffer.putShort(value.toShort())
+        patchBuffer.flip()
+        while (patchBuffer.hasRemaining())
+            file!!.write(patchBuffer, position + patchBuffer.position())
+    }
+}
@@ -17,6 +17,7 @@
  */
 package de.matrix44.musictoolbox.midi
 
+import java.nio.ByteBuffer
 import kotlin.experimental.and
 import kotlin.experimental.or
 import kotlin.math.roundToInt
@@ -76,6 +77,26 @@ class MIDIMessage constructor(
             _data[1] = value.toByte()
         }
 
+    /**
+     * The number of data bytes in this message.
+     */
+    val dataSize: Int
+        get() = _data.size
+
+    /**
+     * Read a data byte of this message.
+     *
+     * @param index Index of the byte inside the data section.
+     */
+    fun dataAt(index: Int) = _data[index].toInt() and 0xFF
+
+    /**
+     * Convert this message into its packed Int form.
+     *
+     * See PackedMIDIMessage for details. System exclusive messages can not be packed.
+     */
+    fun pack() = PackedMIDIMessage.fromMessage(this)
+
     /**
      * The available MIDI message types.
      *
@@ -129,23 +150,59 @@ class MIDIMessage constructor(
         SystemExclusive(0xF0.toByte())
     }
 
+    /**
+     * The status byte of this message (message type combined with the channel).
+     */
+    val status: Byte
+        get() = (_type.msg and 0xF0.toByte()) or (_channel and 0x0F.toByte())
+
+    /**
+     * Number of bytes of this message on the wire.
+     */
+    val size: Int
+        get() = _data.size + 1
+
     /**
      * Convert this event to a byte array that can be sent to actual MIDI hardware.
      */
     fun asBytes(): ByteArray {
 
         // Build new array:
-        return ByteArray(_data.size + 1) {
+        val bytes = ByteArray(size)
+        writeTo(bytes, 0)
+        return bytes
+    }
+
+    /**
+     * Write this message into a caller supplied byte array.
+     *
+     * There is no range checking here so please make sure that the array has room for at least
+     * size bytes after the offset.
+     *
+     * @param dest The destination array.
+     * @param offset Position of the first byte in the destination array.
+     * @return The number of bytes written.
+     */
+    fun writeTo(dest: ByteArray, offset: Int): Int {
 
-            // Iterate through the contents:
-            when (it) {
-                // Combine message and channel into first byte:
-                0 -> (_type.msg and 0x0F.toByte()) or (_channel and 0xF0.toByte())
+        // Combine message and channel into first byte:
+        dest[offset] = status
 
-                // Just copy the rest (if any):
-                else -> _data[it - 1]
-            }
-        }
+        // Just copy the rest (if any):
+        System.arraycopy(_data, 0, dest, offset + 1, _data.size)
+        return size
+    }
+
+    /**
+     * Write this message into a caller supplied byte buffer at its current position.
+     *
+     * @param dest The destination buffer. Must have at least size bytes remaining.
+     * @return The number of bytes written.
+     */
+    fun writeTo(dest: ByteBuffer): Int {
+        dest.put(status)
+        dest.put(_data)
+        return size
     }
 
     /**
@@ -236,7 +293,7 @@ class MIDIMessage constructor(
          * @param lsb Least significant 7 bits of the pitch bend value.
          */
         fun pitchBend(channel: Int, msb: Int, lsb: Int) =
-            MIDIMessage(MessageType.PitchBend, channel.toByte(), msb.toByte(), lsb.toByte())
+            MIDIMessage(MessageType.PitchBend, channel.toByte(), lsb.toByte(), msb.toByte())
 
         /**
          * Create a Pitch Bend message from float.
@@ -252,7 +309,7 @@ class MIDIMessage constructor(
             val floatVal = value.coerceIn(-1.0f, 1.0f)
 
             // Convert to 14 bit value:
-            val intVal : Int = (((floatVal * 16384.0f) + 8192.0f).roundToInt())
+            val intVal : Int = ((floatVal * 8192.0f) + 8192.0f).roundToInt().coerceAtMost(16383)
 
             // Extract bits
             val msb = (intVal shr 7) and 0x7F
@@ -279,7 +336,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun allSoundsOff(channel: Int) =
-            controlChange(120, channel, 0)
+            controlChange(channel, 120, 0)
 
         /**
          * Create a Controller Reset message.
@@ -290,7 +347,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun controllerReset(channel: Int) =
-            controlChange(121, channel, 0)
+            controlChange(channel, 121, 0)
 
         /**
          * Create a Local Control Off message.
@@ -301,7 +358,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun localControlOff(channel: Int) =
-            controlChange(122, channel, 0)
+            controlChange(channel, 122, 0)
 
         /**
          * Create a Local Control On message.
@@ -312,7 +369,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun localControlOn(channel: Int) =
-            controlChange(122, channel, 127)
+            controlChange(channel, 122, 127)
 
         /**
          * Create an All Notes Off message.
@@ -322,7 +379,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun allNotesOff(channel: Int) =
-            controlChange(123, channel, 0)
+            controlChange(channel, 123, 0)
 
         /**
          * Create an Omni Mode Off message.
@@ -332,7 +389,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun omniModeOff(channel: Int) =
-            controlChange(124, channel, 0)
+            controlChange(channel, 124, 0)
 
         /**
          *  Create an Omni Mode On message.
@@ -342,7 +399,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun omniModeOn(channel: Int) =
-            controlChange(125, channel, 0)
+            controlChange(channel, 125, 0)
 
         /**
          * Create a Mono Mode On message.
@@ -352,7 +409,7 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun monoModeOn(channel: Int) =
-            controlChange(126, channel, 0)
+            controlChange(channel, 126, 0)
 
         /**
          * Create a Poly Mode On message.
@@ -362,6 +419,6 @@ class MIDIMessage constructor(
          * @param channel Channel to use for this message.
          */
         fun polyModeOn(channel: Int) =
-            controlChange(127, channel, 0)
+            controlChange(channel, 127, 0)
     }
 }
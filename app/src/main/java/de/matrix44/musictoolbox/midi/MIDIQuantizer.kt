@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Moves notes of an event buffer towards a rhythmic grid.
+ *
+ * Only Note On messages are quantized. Each Note Off is moved by the same amount as the Note On
+ * that started the note, so the note lengths stay the same. A Note Off is never moved behind the
+ * next Note On of the same key though, so repeated and legato notes keep their pairs. All other
+ * events keep their positions. The buffer range is sorted again afterwards.
+ *
+ * The grid starts at tick 0. With swing every second grid point is moved towards the next one:
+ * 0.5 is straight, 0.667 is a triplet feel. The strength tells how far the notes are moved towards
+ * their grid point (1.0 moves them onto the grid). The window limits quantization to notes that are
+ * close to a grid point (iterative quantization), 1.0 quantizes all notes.
+ *
+ * @param grid Distance between two grid points in ticks.
+ * @param swing Position of every second grid point inside a pair of grid steps (0.5..0.75).
+ * @param strength How far notes are moved towards the grid (0..1).
+ * @param window Part of the half grid around each grid point in which notes are quantized (0..1).
+ */
+class MIDIQuantizer constructor(
+    var grid: Int,
+    var swing: Float = 0.5f,
+    var strength: Float = 1.0f,
+    var window: Float = 1.0f
+) {
+
+    /**
+     * Offsets of the currently open notes (channel * 128 + note).
+     */
+    private val noteOffsets = IntArray(16 * 128)
+
+    /**
+     * Position of the next Note On of each key (channel * 128 + note).
+     */
+    private val nextNoteOns = IntArray(16 * 128)
+
+    /**
+     * Offset of each event of the processed range.
+     */
+    private var offsets = IntArray(1024)
+
+    init {
+        require(grid > 0) { "Invalid grid $grid" }
+    }
+
+    /**
+     * Find the grid point that is closest to a position (ignoring strength and window).
+     *
+     * @param ticks The position.
+     */
+    fun gridPointFor(ticks: Int): Int {
+        val pair = grid * 2
+        return gridPoint(ticks, pair, (pair * swing).roundToInt())
+    }
+
+    /**
+     * Quantize a range of events in place.
+     *
+     * @param events The events to quantize. The range has to be sorted.
+     * @param from Index of the first event.
+     * @param to Index after the last event.
+     * @return The number of moved notes.
+     */
+    fun quantize(events: MIDIEventBuffer, from: Int = 0, to: Int = events.size): Int {
+        val count = to - from
+        if (count <= 0)
+            return 0
+        if (offsets.size < count)
+            offsets = IntArray(maxOf(count, offsets.size * 2))
+
+        // Compute the offsets of all positions (no branches on the message type here):
+        val pair = grid * 2
+        val offbeat = (pair * swing).roundToInt()
+        val limit = if (window >= 1.0f) Int.MAX_VALUE else (window * grid * 0.5f).toInt()
+        val s = strength
+        for (i in 0 until count) {
+            val ticks = events.ticksAt(from + i)
+            val distance = gridPoint(ticks, pair, offbeat) - ticks
+            offsets[i] = if (abs(distance) <= limit) (distance * s).roundToInt() else 0
+        }
+
+        // Apply the offsets to the Note Ons and let the Note Offs follow:
+        noteOffsets.fill(0)
+        var moved = 0
+        for (i in 0 until count) {
+            val index = from + i
+            val message = events.messageAt(index)
+            val command = PackedMIDIMessage.command(message)
+            if (command != 0x80 && command != 0x90)
+                continue
+            val key = (PackedMIDIMessage.channel(message) shl 7) or PackedMIDIMessage.data1(message)
+            val offset = if (PackedMIDIMessage.isNoteOn(message)) {
+                noteOffsets[key] = offsets[i]
+                offsets[i]
+            } else
+                noteOffsets[key]
+            if (offset != 0) {
+                events.setTicks(index, maxOf(events.ticksAt(index) + offset, 0))
+                if (PackedMIDIMessage.isNoteOn(message))
+                    moved++
+            }
+        }
+
+        // Keep each Note Off in front of the next Note On of its key:
+        nextNoteOns.fill(Int.MAX_VALUE)
+        for (index in to - 1 downTo from) {
+            val message = events.messageAt(index)
+            val command = PackedMIDIMessage.command(message)
+            if (command != 0x80 && command != 0x90)
+                continue
+            val key = (PackedMIDIMessage.channel(message) shl 7) or PackedMIDIMessage.data1(message)
+            if (PackedMIDIMessage.isNoteOn(message))
+                nextNoteOns[key] = events.ticksAt(index)
+            else if (events.ticksAt(index) > nextNoteOns[key])
+                events.setTicks(index, nextNoteOns[key])
+        }
+
+        // Restore the order:
+        if (!events.isSorted(from, to))
+            events.sort(from, to)
+        return moved
+    }
+
+    /**
+     * Find the closest grid point.
+     *
+     * @param ticks The position.
+     * @param pair Length of a pair of grid steps.
+     * @param offbeat Position of the second grid point inside the pair.
+     */
+    private fun gridPoint(ticks: Int, pair: Int, offbeat: Int): Int {
+        val start = (if (ticks >= 0) ticks / pair else (ticks - pair + 1) / pair) * pair
+        val within = ticks - start
+        return when {
+            within * 2 < offbeat -> start
+            within * 2 < offbeat + pair -> start + offbeat
+            else -> start + pair
+        }
+    }
+}
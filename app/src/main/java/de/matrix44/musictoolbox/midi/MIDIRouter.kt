@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Routes MIDI events by their origin through filters and transforms to sinks.
+ *
+ * The routing graph is made of routes. Each route starts at a source (an origin or ANY_ORIGIN),
+ * runs through a chain of filters and transforms and ends at a sink. Several routes can share the
+ * same source or sink, so one event can be split up into several destinations and several sources
+ * can be merged into one destination:
+ *
+ * router.addRoute(0).types(MessageType.NoteOn, MessageType.NoteOff).transpose(12).to(synth)
+ * router.addRoute(0).channels(9).to(drums)
+ * router.compile()
+ *
+ * Changes to the routes take effect when compile() is called. The compiled graph is a flat dispatch
+ * table indexed by origin and message type that lists the routes to run, and the filters and
+ * transforms of all routes are stored as op codes in one IntArray. Routing an event is a couple of
+ * array lookups and never allocates. The router can be fed from any thread, compile() publishes a
+ * new table atomically.
+ */
+class MIDIRouter : MIDIEventSink {
+
+    /**
+     * One path through the routing graph.
+     *
+     * All functions return the route itself so the calls can be chained. Filters and transforms
+     * are applied in the order they were added.
+     *
+     * @param origin The source of this route (see MIDIEvent.origin) or ANY_ORIGIN.
+     */
+    class Route internal constructor(val origin: Int) {
+
+        /**
+         * Bit mask of the accepted message types (bit n is status nibble 0x8 + n).
+         */
+        internal var typeMask = 0xFF
+
+        /**
+         * The op codes of this route (three ints per op: code, parameter a, parameter b).
+         */
+        internal var ops = IntArray(12)
+
+        /**
+         * Number of used ints in ops.
+         */
+        internal var opSize = 0
+
+        /**
+         * The destination of this route.
+         */
+        internal var sink: MIDIEventSink? = null
+
+        /**
+         * Only accept the given message types.
+         *
+         * System messages are matched by MessageType.SystemExclusive.
+         */
+        fun types(vararg types: MIDIMessage.MessageType): Route {
+            var mask = 0
+            for (type in types)
+                mask = mask or (1 shl (((type.msg.toInt() and 0xF0) shr 4) - 8))
+            typeMask = typeMask and mask
+            return this
+        }
+
+        /**
+         * Only accept channel messages on the given channels. System messages always pass.
+         */
+        fun channels(vararg channels: Int): Route {
+            var mask = 0
+            for (channel in channels)
+                mask = mask or (1 shl (channel and 0x0F))
+            return addOp(OP_CHANNELS, mask, 0)
+        }
+
+        /**
+         * Only accept note messages (Note On/Off, Polyphonic Key Pressure) in the given note range.
+         * Other messages always pass.
+         */
+        fun notes(low: Int, high: Int) = addOp(OP_NOTES, low, high)
+
+        /**
+         * Transpose note messages. Notes that are moved out of the MIDI range are dropped.
+         */
+        fun transpose(semitones: Int) = addOp(OP_TRANSPOSE, semitones, 0)
+
+        /**
+         * Move channel messages from one channel to another one.
+         *
+         * @param from The source channel or -1 for all channels.
+         * @param to The destination channel.
+         */
+        fun mapChannel(from: Int, to: Int) = addOp(OP_MAP_CHANNEL, from, to and 0x0F)
+
+        /**
+         * Scale the velocity of Note On messages. The result is clamped to 1..127.
+         */
+        fun scaleVelocity(factor: Float) = addOp(OP_VELOCITY, (factor * 256.0f).toInt(), 0)
+
+        /**
+         * Set the destination of this route.
+         */
+        fun to(sink: MIDIEventSink): Route {
+            this.sink = sink
+            return this
+        }
+
+        /**
+         * Append an op code.
+         */
+        private fun addOp(code: Int, a: Int, b: Int): Route {
+            if (opSize + 3 > ops.size)
+                ops = ops.copyOf(ops.size * 2)
+            ops[opSize++] = code
+            ops[opSize++] = a
+            ops[opSize++] = b
+            return this
+        }
+    }
+
+    /**
+     * The compiled routing graph.
+     */
+    private class Table(
+
+        /**
+         * Origin of slot 1 (slot 0 is for unknown origins and slots - 1 for origins outside the
+         * table).
+         */
+        val minOrigin: Int,
+
+        /**
+         * Number of origin slots.
+         */
+        val slots: Int,
+
+        /**
+         * Start of the route list in dispatchRoutes for each slot and type (slot * 8 + type).
+         * The list ends at the start of the next entry.
+         */
+        val dispatchStart: IntArray,
+
+        /**
+         * Route indices for all slots and types.
+         */
+        val dispatchRoutes: IntArray,
+
+        /**
+         * Op codes of all routes.
+         */
+        val ops: IntArray,
+
+        /**
+         * Start of each route's op codes in ops.
+         */
+        val opStart: IntArray,
+
+        /**
+         * End of each route's op codes in ops.
+         */
+        val opEnd: IntArray,
+
+        /**
+         * Sink of each route.
+         */
+        val sinks: Array<MIDIEventSink>
+    )
+
+    /**
+     * The configured routes.
+     */
+    private val routes = ArrayList<Route>()
+
+    /**
+     * The current compiled graph.
+     */
+    @Volatile
+    private var table = compileTable()
+
+    /**
+     * Add a new route.
+     *
+     * @param origin The source of the route or ANY_ORIGIN.
+     */
+    fun addRoute(origin: Int = ANY_ORIGIN): Route {
+        val route = Route(origin)
+        routes.add(route)
+        return route
+    }
+
+    /**
+     * Remove a route.
+     */
+    fun removeRoute(route: Route) {
+        routes.remove(route)
+    }
+
+    /**
+     * Remove all routes.
+     */
+    fun clear() {
+        routes.clear()
+    }
+
+    /**
+     * Compile the routes and activate the new graph.
+     */
+    fun compile() {
+        table = compileTable()
+    }
+
+    /**
+     * Route an event.
+     *
+     * @param ticks Time stamp of the event.
+     * @param origin Origin of the event.
+     * @param message The packed message.
+     */
+    override fun onEvent(ticks: Int, origin: Int, message: Int) {
+
+        // Find the routes for this origin and type:
+        val t = table
+        val status = PackedMIDIMessage.status(message)
+        if (status < 0x80)
+            return
+        val key = slotOf(t, origin) * 8 + ((status shr 4) - 8)
+        val end = t.dispatchStart[key + 1]
+
+        // Run all routes:
+        routes@ for (r in t.dispatchStart[key] until end) {
+            val route = t.dispatchRoutes[r]
+            var msg = message
+            val ops = t.ops
+            var op = t.opStart[route]
+            val opEnd = t.opEnd[route]
+            while (op < opEnd) {
+                val a = ops[op + 1]
+                val b = ops[op + 2]
+                when (ops[op]) {
+                    OP_CHANNELS -> {
+                        if (PackedMIDIMessage.isChannelMessage(msg) && (a shr PackedMIDIMessage.channel(msg)) and 1 == 0)
+                            continue@routes
+                    }
+                    OP_NOTES -> {
+                        if (isNoteMessage(msg)) {
+                            val note = PackedMIDIMessage.data1(msg)
+                            if (note < a || note > b)
+                                continue@routes
+                        }
+                    }
+                    OP_TRANSPOSE -> {
+                        if (isNoteMessage(msg)) {
+                            val note = PackedMIDIMessage.data1(msg) + a
+                            if (note !in 0..127)
+                                continue@routes
+                            msg = (msg and 0xFF00FF) or (note shl 8)
+                        }
+                    }
+                    OP_MAP_CHANNEL -> {
+                        if (PackedMIDIMessage.isChannelMessage(msg) && (a < 0 || PackedMIDIMessage.channel(msg) == a))
+                            msg = (msg and 0x0F.inv()) or b
+                    }
+                    OP_VELOCITY -> {
+                        if (PackedMIDIMessage.isNoteOn(msg)) {
+                            val velocity = ((PackedMIDIMessage.data2(msg) * a) shr 8).coerceIn(1, 127)
+                            msg = (msg and 0x00FFFF) or (velocity shl 16)
+                        }
+                    }
+                }
+                op += 3
+            }
+
+            // Deliver:
+            t.sinks[route].onEvent(ticks, origin, msg)
+        }
+    }
+
+    /**
+     * Build the dispatch table from the current routes.
+     */
+    private fun compileTable(): Table {
+
+        // Only routes with a sink are active:
+        val active = routes.filter { it.sink != null }
+
+        // Find the origin range of the table:
+        var minOrigin = Int.MAX_VALUE
+        var maxOrigin = Int.MIN_VALUE
+        for (route in active) {
+            if (route.origin == ANY_ORIGIN || route.origin < 0)
+                continue
+            minOrigin = minOf(minOrigin, route.origin)
+            maxOrigin = maxOf(maxOrigin, route.origin)
+        }
+        if (minOrigin > maxOrigin) {
+            minOrigin = 0
+            maxOrigin = -1
+        }
+
+        // Slot 0 is the unknown origin (-1), then the origin range and one slot for all others:
+        val slots = maxOrigin - minOrigin + 3
+
+        // Collect the route lists for all slots and types:
+        val dispatchStart = IntArray(slots * 8 + 1)
+        val dispatchRoutes = ArrayList<Int>()
+        for (slot in 0 until slots) {
+            val origin = when (slot) {
+                0 -> -1
+                slots - 1 -> ANY_ORIGIN
+                else -> minOrigin + slot - 1
+            }
+            for (type in 0 until 8) {
+                dispatchStart[slot * 8 + type] = dispatchRoutes.size
+                for ((index, route) in active.withIndex()) {
+                    val originMatches = route.origin == ANY_ORIGIN || route.origin == origin
+                    if (originMatches && (route.typeMask shr type) and 1 != 0)
+                        dispatchRoutes.add(index)
+                }
+            }
+        }
+        dispatchStart[slots * 8] = dispatchRoutes.size
+
+        // Concatenate the op codes:
+        val opStart = IntArray(active.size)
+        val opEnd = IntArray(active.size)
+        var opCount = 0
+        for (route in active)
+            opCount += route.opSize
+        val ops = IntArray(opCount)
+        var pos = 0
+        for ((index, route) in active.withIndex()) {
+            System.arraycopy(route.ops, 0, ops, pos, route.opSize)
+            opStart[index] = pos
+            pos += route.opSize
+            opEnd[index] = pos
+        }
+
+        return Table(minOrigin, slots, dispatchStart, dispatchRoutes.toIntArray(), ops, opStart, opEnd,
+            Array(active.size) { active[it].sink!! })
+    }
+
+    /**
+     * Map an origin to its slot in the dispatch table.
+     */
+    private fun slotOf(t: Table, origin: Int): Int {
+        if (origin == -1)
+            return 0
+        val slot = origin - t.minOrigin + 1
+        return if (slot in 1 until t.slots - 1) slot else t.slots - 1
+    }
+
+    /**
+     * Checks if the message carries a note number.
+     */
+    private fun isNoteMessage(message: Int): Boolean {
+        val command = PackedMIDIMessage.command(message)
+        return command == 0x80 || command == 0x90 || command == 0xA0
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Route source that matches all origins.
+         */
+        const val ANY_ORIGIN = Int.MIN_VALUE
+
+        /**
+         * Op codes.
+         */
+        private const val OP_CHANNELS = 0
+        private const val OP_NOTES = 1
+        private const val OP_TRANSPOSE = 2
+        private const val OP_MAP_CHANNEL = 3
+        private const val OP_VELOCITY = 4
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import android.os.Process
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.sqrt
+
+/**
+ * Dispatches MIDI events to a sink at their due times.
+ *
+ * The events are kept in a hierarchical timing wheel: 256 slots of 1 ms, 64 slots of 256 ms and
+ * 64 slots of 16.384 s, events that are even further away wait in an overflow list. Inserting an
+ * event is O(1), and the events of a slot are moved down one level when the wheel reaches it. The
+ * events of the current millisecond are ordered by their exact deadline in a small heap.
+ *
+ * Dispatching runs on a dedicated thread with raised priority. The thread parks until the next
+ * deadline and spins for the last few microseconds, so events are delivered with sub millisecond
+ * accuracy. The events are stored in pooled primitive arrays, scheduling and dispatching don't
+ * create objects once the pool has grown to the needed size.
+ *
+ * Events can be scheduled from any thread. The sink is called from the scheduler thread. Events
+ * with the same deadline are dispatched in the order they were scheduled.
+ *
+ * @param sink The receiver of the events.
+ * @param threadPriority Android thread priority of the scheduler thread.
+ * @param spinNanos The scheduler thread busy waits for deadlines that are closer than this.
+ */
+class MIDIScheduler constructor(
+    private val sink: MIDIEventSink,
+    private val threadPriority: Int = Process.THREAD_PRIORITY_URGENT_AUDIO,
+    @Volatile var spinNanos: Long = 100000L
+) {
+
+    /**
+     * Lock for the wheel and the node pool.
+     */
+    private val lock = Any()
+
+    /**
+     * Time base of the wheel.
+     */
+    private val startNanos = System.nanoTime()
+
+    /**
+     * The next millisecond tick of the wheel that is not processed yet.
+     */
+    private var currentTick = 0L
+
+    /**
+     * The levels of the wheel (first node of each slot or -1).
+     */
+    private val wheel0 = IntArray(256) { -1 }
+    private val wheel1 = IntArray(64) { -1 }
+    private val wheel2 = IntArray(64) { -1 }
+
+    /**
+     * First node of the overflow list or -1.
+     */
+    private var overflow = -1
+
+    /**
+     * The node pool, one entry per scheduled event.
+     */
+    private var nodeDeadlines = LongArray(256)
+    private var nodeSequences = LongArray(256)
+    private var nodeTicks = IntArray(256)
+    private var nodeOrigins = IntArray(256)
+    private var nodeMessages = IntArray(256)
+    private var nodeNext = IntArray(256)
+
+    /**
+     * Number of nodes that were ever used.
+     */
+    private var nodeCount = 0
+
+    /**
+     * First unused node or -1.
+     */
+    private var freeNode = -1
+
+    /**
+     * Sequence number for the next event.
+     */
+    private var nextSequence = 0L
+
+    /**
+     * Heap of the nodes that are due in the current millisecond (or earlier).
+     */
+    private var due = IntArray(64)
+    private var dueSize = 0
+
+    /**
+     * Number of scheduled events.
+     */
+    private var pending = 0
+
+    /**
+     * Time at which the scheduler thread wakes up.
+     */
+    private var wakeTime = Long.MAX_VALUE
+
+    /**
+     * Events taken from the wheel that are dispatched outside of the lock.
+     */
+    private val batchDeadlines = LongArray(BATCH_SIZE)
+    private val batchTicks = IntArray(BATCH_SIZE)
+    private val batchOrigins = IntArray(BATCH_SIZE)
+    private val batchMessages = IntArray(BATCH_SIZE)
+
+    /**
+     * The scheduler thread.
+     */
+    private var thread: Thread? = null
+
+    /**
+     * Is the scheduler thread supposed to run?
+     */
+    @Volatile
+    private var running = false
+
+    /**
+     * Lateness statistics (written by the scheduler thread only). The lateness is the time between
+     * the deadline and the start of the dispatch of an event, the run time of the sink is not
+     * included.
+     */
+    @Volatile
+    var dispatchedCount = 0L
+        private set
+    @Volatile
+    var maxLatenessNanos = 0L
+        private set
+    @Volatile
+    private var latenessSum = 0.0
+    @Volatile
+    private var latenessSquareSum = 0.0
+    @Volatile
+    private var resetStatsRequested = false
+
+    /**
+     * Average time between the deadline and the dispatch of an event.
+     */
+    val meanLatenessNanos: Double
+        get() {
+            val count = dispatchedCount
+            return if (count > 0) latenessSum / count else 0.0
+        }
+
+    /**
+     * Standard deviation of the lateness.
+     */
+    val jitterNanos: Double
+        get() {
+            val count = dispatchedCount
+            if (count == 0L)
+                return 0.0
+            val mean = latenessSum / count
+            return sqrt(maxOf(latenessSquareSum / count - mean * mean, 0.0))
+        }
+
+    /**
+     * Number of events that wait for their deadline.
+     */
+    val size: Int
+        get() = synchronized(lock) { pending }
+
+    /**
+     * Current time in the time base of the scheduler (same as System.nanoTime()).
+     */
+    fun now() = System.nanoTime()
+
+    /**
+     * Start the scheduler thread.
+     */
+    fun start() {
+        if (thread != null)
+            return
+        running = true
+        val t = Thread(Runnable { run() }, "MIDIScheduler")
+        thread = t
+        t.start()
+    }
+
+    /**
+     * Stop the scheduler thread and wait for it to finish. Scheduled events are kept.
+     */
+    fun stop() {
+        val t = thread ?: return
+        running = false
+        LockSupport.unpark(t)
+        t.join()
+        thread = null
+    }
+
+    /**
+     * Schedule an event.
+     *
+     * @param deadlineNanos Dispatch time in the System.nanoTime() time base.
+     * @param ticks Time stamp that is passed to the sink.
+     * @param origin Origin that is passed to the sink.
+     * @param message The packed message.
+     */
+    fun schedule(deadlineNanos: Long, ticks: Int, origin: Int, message: Int) {
+        val wake: Boolean
+        synchronized(lock) {
+            val node = allocNode()
+            nodeDeadlines[node] = deadlineNanos
+            nodeSequences[node] = nextSequence++
+            nodeTicks[node]     = ticks
+            nodeOrigins[node]   = origin
+            nodeMessages[node]  = message
+
+            // The wheel is not advanced while it is empty, catch up before inserting:
+            if (pending == dueSize)
+                currentTick = (System.nanoTime() - startNanos) / TICK_NANOS
+            insert(node)
+            pending++
+            wake = deadlineNanos < wakeTime
+        }
+        if (wake)
+            thread?.let { LockSupport.unpark(it) }
+    }
+
+    /**
+     * Schedule a MIDIEvent object.
+     *
+     * @param deadlineNanos Dispatch time in the System.nanoTime() time base.
+     * @param event The event to schedule.
+     */
+    fun schedule(deadlineNanos: Long, event: MIDIEvent) =
+        schedule(deadlineNanos, event.ticks, event.origin, event.message.pack())
+
+    /**
+     * Schedule a range of events from an event buffer.
+     *
+     * The event ticks are converted to deadlines with the tempo map.
+     *
+     * @param events The source events (absolute ticks).
+     * @param tempoMap The tempo map that converts ticks to time.
+     * @param startNanos The time of tick 0 in the System.nanoTime() time base.
+     * @param from Index of the first event.
+     * @param to Index after the last event.
+     */
+    fun schedule(events: MIDIEventBuffer, tempoMap: TempoMap, startNanos: Long, from: Int = 0, to: Int = events.size) {
+        for (i in from until to) {
+            val ticks = events.ticksAt(i)
+            schedule(startNanos + tempoMap.ticksToMicros(ticks) * 1000L, ticks, events.originAt(i), events.messageAt(i))
+        }
+    }
+
+    /**
+     * Remove all scheduled events.
+     */
+    fun cancelAll() {
+        synchronized(lock) {
+            wheel0.fill(-1)
+            wheel1.fill(-1)
+            wheel2.fill(-1)
+            overflow = -1
+            dueSize = 0
+            pending = 0
+            nodeCount = 0
+            freeNode = -1
+        }
+    }
+
+    /**
+     * Reset the lateness statistics. The reset is done by the scheduler thread with its next
+     * dispatch.
+     */
+    fun resetStats() {
+        resetStatsRequested = true
+    }
+
+    /**
+     * Main loop of the scheduler thread.
+     */
+    private fun run() {
+        Process.setThreadPriority(threadPriority)
+        while (running) {
+
+            // Collect the events that are due:
+            var count = 0
+            var wait: Long
+            synchronized(lock) {
+                val now = System.nanoTime()
+                advance((now - startNanos) / TICK_NANOS)
+                while (dueSize > 0 && count < BATCH_SIZE && nodeDeadlines[due[0]] <= now) {
+                    val node = popDue()
+                    batchDeadlines[count] = nodeDeadlines[node]
+                    batchTicks[count]     = nodeTicks[node]
+                    batchOrigins[count]   = nodeOrigins[node]
+                    batchMessages[count]  = nodeMessages[node]
+                    freeNode(node)
+                    pending--
+                    count++
+                }
+
+                // Time until the next deadline or the next tick of the wheel:
+                wait = when {
+                    count > 0 -> 0L
+                    dueSize > 0 -> nodeDeadlines[due[0]] - now
+                    pending > 0 -> startNanos + currentTick * TICK_NANOS - now
+                    else -> Long.MAX_VALUE
+                }
+                wakeTime = if (wait == Long.MAX_VALUE) Long.MAX_VALUE else now + wait
+            }
+
+            // Dispatch:
+            if (count > 0) {
+                dispatch(count)
+                continue
+            }
+
+            // Wait for the next deadline, the last part is spent spinning:
+            val spin = spinNanos
+            when {
+                wait == Long.MAX_VALUE -> LockSupport.park(this)
+                wait > spin -> LockSupport.parkNanos(this, wait - spin)
+                else -> {
+                    val until = System.nanoTime() + wait
+                    while (running && System.nanoTime() < until)
+                        Thread.yield()
+                }
+            }
+        }
+    }
+
+    /**
+     * Pass a batch of events to the sink and update the statistics.
+     */
+    private fun dispatch(count: Int) {
+        if (resetStatsRequested) {
+            resetStatsRequested = false
+            dispatchedCount   = 0L
+            maxLatenessNanos  = 0L
+            latenessSum       = 0.0
+            latenessSquareSum = 0.0
+        }
+        var sum = 0.0
+        var squareSum = 0.0
+        var max = maxLatenessNanos
+
+        // The lateness is taken once before the batch goes out, so it doesn't include the run time
+        // of the sink:
+        val now = System.nanoTime()
+        for (i in 0 until count) {
+            sink.onEvent(batchTicks[i], batchOrigins[i], batchMessages[i])
+            val lateness = now - batchDeadlines[i]
+            sum += lateness
+            squareSum += lateness.toDouble() * lateness
+            if (lateness > max)
+                max = lateness
+        }
+        latenessSum += sum
+        latenessSquareSum += squareSum
+        maxLatenessNanos = max
+        dispatchedCount += count
+    }
+
+    /**
+     * Process all ticks of the wheel up to the given tick.
+     */
+    private fun advance(nowTick: Long) {
+
+        // Nothing in the wheel, just jump:
+        if (pending == dueSize) {
+            if (nowTick >= currentTick)
+                currentTick = nowTick + 1
+            return
+        }
+
+        while (currentTick <= nowTick) {
+
+            // Move the events of this tick into the due heap:
+            val slot = (currentTick and 255).toInt()
+            var node = wheel0[slot]
+            wheel0[slot] = -1
+            while (node >= 0) {
+                val next = nodeNext[node]
+                pushDue(node)
+                node = next
+            }
+            currentTick++
+
+            // Entered a new block, move the events of the higher levels down:
+            if (currentTick and 255L == 0L) {
+                if (currentTick and 16383L == 0L) {
+                    if (currentTick and 0xFFFFFL == 0L) {
+                        val list = overflow
+                        overflow = -1
+                        cascade(list)
+                    }
+                    val slot2 = ((currentTick shr 14) and 63).toInt()
+                    val list = wheel2[slot2]
+                    wheel2[slot2] = -1
+                    cascade(list)
+                }
+                val slot1 = ((currentTick shr 8) and 63).toInt()
+                val list = wheel1[slot1]
+                wheel1[slot1] = -1
+                cascade(list)
+            }
+        }
+    }
+
+    /**
+     * Insert all nodes of a list again.
+     */
+    private fun cascade(list: Int) {
+        var node = list
+        while (node >= 0) {
+            val next = nodeNext[node]
+            insert(node)
+            node = next
+        }
+    }
+
+    /**
+     * Put a node into the right slot of the wheel.
+     */
+    private fun insert(node: Int) {
+        val tick = (nodeDeadlines[node] - startNanos) / TICK_NANOS
+        when {
+            tick < currentTick -> pushDue(node)
+            tick shr 8 == currentTick shr 8 -> {
+                val slot = (tick and 255).toInt()
+                nodeNext[node] = wheel0[slot]
+                wheel0[slot] = node
+            }
+            tick shr 14 == currentTick shr 14 -> {
+                val slot = ((tick shr 8) and 63).toInt()
+                nodeNext[node] = wheel1[slot]
+                wheel1[slot] = node
+            }
+            tick shr 20 == currentTick shr 20 -> {
+                val slot = ((tick shr 14) and 63).toInt()
+                nodeNext[node] = wheel2[slot]
+                wheel2[slot] = node
+            }
+            else -> {
+                nodeNext[node] = overflow
+                overflow = node
+            }
+        }
+    }
+
+    /**
+     * Checks if node a is due before node b.
+     */
+    private fun before(a: Int, b: Int) =
+        nodeDeadlines[a] < nodeDeadlines[b] ||
+            (nodeDeadlines[a] == nodeDeadlines[b] && nodeSequences[a] < nodeSequences[b])
+
+    /**
+     * Add a node to the due heap.
+     */
+    private fun pushDue(node: Int) {
+        if (dueSize == due.size)
+            due = due.copyOf(dueSize * 2)
+        var i = dueSize++
+        while (i > 0) {
+            val parent = (i - 1) shr 1
+            if (!before(node, due[parent]))
+                break
+            due[i] = due[parent]
+            i = parent
+        }
+        due[i] = node
+    }
+
+    /**
+     * Remove the earliest node from the due heap.
+     */
+    private fun popDue(): Int {
+        val top = due[0]
+        val last = due[--dueSize]
+        var i = 0
+        while (true) {
+            var child = i * 2 + 1
+            if (child >= dueSize)
+                break
+            if (child + 1 < dueSize && before(due[child + 1], due[child]))
+                child++
+            if (!before(due[child], last))
+                break
+            due[i] = due[child]
+            i = child
+        }
+        due[i] = last
+        return top
+    }
+
+    /**
+     * Get an unused node from the pool.
+     */
+    private fun allocNode(): Int {
+        if (freeNode >= 0) {
+            val node = freeNode
+            freeNode = nodeNext[node]
+            return node
+        }
+        if (nodeCount == nodeNext.size) {
+            val newSize = nodeCount * 2
+            nodeDeadlines = nodeDeadlines.copyOf(newSize)
+            nodeSequences = nodeSequences.copyOf(newSize)
+            nodeTicks     = nodeTicks.copyOf(newSize)
+            nodeOrigins   = nodeOrigins.copyOf(newSize)
+            nodeMessages  = nodeMessages.copyOf(newSize)
+            nodeNext      = nodeNext.copyOf(newSize)
+        }
+        return nodeCount++
+    }
+
+    /**
+     * Return a node to the pool.
+     */
+    private fun freeNode(node: Int) {
+        nodeNext[node] = freeNode
+        freeNode = node
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Length of one tick of the lowest wheel level.
+         */
+        private const val TICK_NANOS = 1000000L
+
+        /**
+         * Maximum number of events that are dispatched per lock.
+         */
+        private const val BATCH_SIZE = 64
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import java.nio.ByteBuffer
+
+/**
+ * Serializes a stream of MIDI messages into one reusable byte buffer.
+ *
+ * Fill the encoder with messages until a write function returns false (or the packet is complete),
+ * send the first size bytes of the buffer and call clear() to start over. No objects are created
+ * while encoding.
+ *
+ * With running status enabled the status byte of a channel message is left out if it matches the
+ * status byte of the previous channel message. System common messages cancel the running status,
+ * realtime messages don't affect it. The running status is also reset by clear() so every packet
+ * can be decoded on its own.
+ *
+ * @param capacity Size of the buffer in bytes.
+ * @param direct Use a direct buffer (useful if the data is passed on to native code or NIO).
+ * @param runningStatus Enable running status compression.
+ */
+class MIDIStreamEncoder constructor(
+    capacity: Int,
+    direct: Boolean = false,
+    var runningStatus: Boolean = false
+) {
+
+    /**
+     * The buffer that receives the data. The encoded data is located at [0, size).
+     */
+    val buffer: ByteBuffer = if (direct) ByteBuffer.allocateDirect(capacity) else ByteBuffer.allocate(capacity)
+
+    /**
+     * Status byte of the last written channel message or 0 if there is none.
+     */
+    private var lastStatus = 0
+
+    /**
+     * Number of bytes written so far.
+     */
+    val size: Int
+        get() = buffer.position()
+
+    /**
+     * Number of bytes that can still be written.
+     */
+    val remaining: Int
+        get() = buffer.remaining()
+
+    /**
+     * Reset the buffer and the running status for the next packet.
+     */
+    fun clear() {
+        buffer.clear()
+        lastStatus = 0
+    }
+
+    /**
+     * Write a packed message.
+     *
+     * @param message The packed message to write.
+     * @return False if there was not enough room left (nothing is written in this case).
+     */
+    fun write(message: Int): Boolean {
+
+        // Skip invalid messages:
+        val status = PackedMIDIMessage.status(message)
+        val size = PackedMIDIMessage.sizeOfStatus(status)
+        if (size == 0)
+            return true
+
+        // Realtime messages don't touch the running status:
+        if (status >= 0xF8) {
+            if (buffer.remaining() < 1)
+                return false
+            buffer.put(status.toByte())
+            return true
+        }
+
+        // Can we leave out the status byte?
+        val skipStatus = runningStatus && status == lastStatus
+        val needed = if (skipStatus) size - 1 else size
+        if (buffer.remaining() < needed)
+            return false
+
+        // Write the message:
+        if (!skipStatus)
+            buffer.put(status.toByte())
+        if (size > 1)
+            buffer.put(PackedMIDIMessage.data1(message).toByte())
+        if (size > 2)
+            buffer.put(PackedMIDIMessage.data2(message).toByte())
+
+        // Channel messages start a running status, system common messages cancel it:
+        lastStatus = if (status < 0xF0) status else 0
+        return true
+    }
+
+    /**
+     * Write a MIDIMessage object.
+     *
+     * @param message The message to write.
+     * @return False if there was not enough room left (nothing is written in this case).
+     */
+    fun write(message: MIDIMessage): Boolean {
+
+        // Short messages are handled by the packed version:
+        if (message.message != MIDIMessage.MessageType.SystemExclusive)
+            return write(message.pack())
+
+        // System exclusive messages are written as is:
+        if (buffer.remaining() < message.size)
+            return false
+        message.writeTo(buffer)
+        lastStatus = 0
+        return true
+    }
+
+    /**
+     * Write a chunk of a pooled system exclusive message.
+     *
+     * As much of the message as fits is written. Call this again with the returned position for
+     * the next packet until the framed size of the message is reached.
+     *
+     * @param message The message to write.
+     * @param position Index into the framed message where to continue.
+     * @return The position after the last written byte.
+     */
+    fun writeSysEx(message: SysExMessage, position: Int = 0): Int {
+        lastStatus = 0
+        return message.writeTo(buffer, position)
+    }
+
+    /**
+     * Write the message of a MIDIEvent object.
+     *
+     * @param event The event to write.
+     * @return False if there was not enough room left (nothing is written in this case).
+     */
+    fun write(event: MIDIEvent) = write(event.message)
+
+    /**
+     * Write a range of events from an event buffer.
+     *
+     * Writing stops at the first event that doesn't fit into the remaining space.
+     *
+     * @param events The source buffer.
+     * @param from Index of the first event to write.
+     * @param to Index after the last event to write.
+     * @return The index of the first event that was not written (to if all events were written).
+     */
+    fun write(events: MIDIEventBuffer, from: Int = 0, to: Int = events.size): Int {
+        for (i in from until to) {
+            if (!write(events.messageAt(i)))
+                return i
+        }
+        return to
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Incremental parser for raw MIDI byte streams.
+ *
+ * This is the inverse of MIDIMessage.asBytes() and MIDIStreamEncoder. The data can be passed in
+ * arbitrary chunks as it arrives from a port or a file, messages that are split between chunks are
+ * completed with the next chunk. The parser handles running status, realtime messages (0xF8..0xFF)
+ * that are interleaved with other messages and system exclusive messages of any length.
+ *
+ * Short messages are reported in their packed form (see PackedMIDIMessage). System exclusive data
+ * is not collected but handed to the listener as slices of the input chunks, so no objects are
+ * created while parsing.
+ *
+ * @param listener The receiver of the decoded messages.
+ */
+class MIDIStreamParser constructor(private val listener: Listener) {
+
+    /**
+     * Implement this interface to receive the decoded messages.
+     */
+    interface Listener {
+
+        /**
+         * A short message was decoded.
+         *
+         * @param message The packed message.
+         */
+        fun onMessage(message: Int)
+
+        /**
+         * A system exclusive message starts (0xF0 was received).
+         */
+        fun onSysExStart() {}
+
+        /**
+         * Payload of the current system exclusive message.
+         *
+         * This can be called multiple times per message. The data is only valid during the call.
+         *
+         * @param data Array that holds the data.
+         * @param offset Position of the first byte in the array.
+         * @param length Number of bytes.
+         */
+        fun onSysExData(data: ByteArray, offset: Int, length: Int) {}
+
+        /**
+         * The current system exclusive message has ended.
+         *
+         * @param complete True if the message was terminated by 0xF7, false if it was cut off by
+         *                 another status byte.
+         */
+        fun onSysExEnd(complete: Boolean) {}
+    }
+
+    /**
+     * Listener that appends all decoded short messages to an event buffer.
+     *
+     * System exclusive messages are ignored.
+     *
+     * @param buffer The buffer that receives the messages.
+     * @param ticks Time stamp for the appended events. Update this before passing in new data.
+     * @param origin Origin for the appended events.
+     */
+    class BufferListener constructor(
+        val buffer: MIDIEventBuffer,
+        var ticks: Int = 0,
+        var origin: Int = -1
+    ) : Listener {
+        override fun onMessage(message: Int) {
+            buffer.append(ticks, origin, message)
+        }
+    }
+
+    /**
+     * Status byte that is reused for data bytes without a status byte (0 if there is none).
+     */
+    private var runningStatus = 0
+
+    /**
+     * Status byte of the message that is currently collected (0 if there is none).
+     */
+    private var currentStatus = 0
+
+    /**
+     * Number of data bytes the current message needs.
+     */
+    private var expectedData = 0
+
+    /**
+     * Number of data bytes received for the current message.
+     */
+    private var receivedData = 0
+
+    /**
+     * The first data byte of the current message.
+     */
+    private var data1 = 0
+
+    /**
+     * Are we inside a system exclusive message?
+     */
+    private var inSysEx = false
+
+    /**
+     * Reset the parser to its initial state (e.g. after a port was reopened).
+     *
+     * An unfinished system exclusive message is reported as incomplete.
+     */
+    fun reset() {
+        if (inSysEx)
+            listener.onSysExEnd(false)
+        inSysEx = false
+        runningStatus = 0
+        currentStatus = 0
+        receivedData = 0
+    }
+
+    /**
+     * Parse a chunk of data.
+     *
+     * @param data Array that holds the data.
+     * @param offset Position of the first byte in the array.
+     * @param length Number of bytes to parse.
+     */
+    fun parse(data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+
+        // Start of the current system exclusive data run:
+        var sysExStart = offset
+
+        // Loop through all bytes:
+        val end = offset + length
+        for (i in offset until end) {
+            val b = data[i].toInt() and 0xFF
+
+            // Realtime messages can show up everywhere:
+            if (b >= 0xF8) {
+
+                // Flush pending system exclusive data first to keep the order:
+                if (inSysEx) {
+                    if (i > sysExStart)
+                        listener.onSysExData(data, sysExStart, i - sysExStart)
+                    sysExStart = i + 1
+                }
+
+                // Undefined realtime messages (0xF9, 0xFD) are dropped:
+                if (PackedMIDIMessage.sizeOfStatus(b) != 0)
+                    listener.onMessage(b)
+                continue
+            }
+
+            // Data byte?
+            if (b < 0x80) {
+
+                // Just collect system exclusive data:
+                if (inSysEx)
+                    continue
+
+                // Reuse the running status if there is no current status:
+                if (currentStatus == 0) {
+                    if (runningStatus == 0)
+                        continue // Stray data byte.
+                    startMessage(runningStatus)
+                }
+
+                // Collect data:
+                if (receivedData == 0)
+                    data1 = b
+                receivedData++
+
+                // Message complete?
+                if (receivedData >= expectedData) {
+                    listener.onMessage(PackedMIDIMessage.pack(currentStatus, data1, if (expectedData > 1) b else 0))
+                    currentStatus = 0
+                }
+                continue
+            }
+
+            // A status byte ends a system exclusive message:
+            if (inSysEx) {
+                if (i > sysExStart)
+                    listener.onSysExData(data, sysExStart, i - sysExStart)
+                inSysEx = false
+                listener.onSysExEnd(b == 0xF7)
+                if (b == 0xF7)
+                    continue
+            }
+
+            // Start of system exclusive message:
+            if (b == 0xF0) {
+                inSysEx = true
+                runningStatus = 0
+                currentStatus = 0
+                sysExStart = i + 1
+                listener.onSysExStart()
+                continue
+            }
+
+            // System common messages cancel the running status:
+            if (b >= 0xF0) {
+                runningStatus = 0
+                currentStatus = 0
+                when (PackedMIDIMessage.sizeOfStatus(b)) {
+                    1 -> listener.onMessage(b)
+                    0 -> {} // Undefined or stray 0xF7.
+                    else -> startMessage(b)
+                }
+                continue
+            }
+
+            // Channel message:
+            runningStatus = b
+            startMessage(b)
+        }
+
+        // Hand out the rest of the system exclusive data in this chunk:
+        if (inSysEx && end > sysExStart)
+            listener.onSysExData(data, sysExStart, end - sysExStart)
+    }
+
+    /**
+     * Start collecting a new message.
+     *
+     * @param status The status byte of the message.
+     */
+    private fun startMessage(status: Int) {
+        currentStatus = status
+        expectedData  = PackedMIDIMessage.sizeOfStatus(status) - 1
+        receivedData  = 0
+    }
+}
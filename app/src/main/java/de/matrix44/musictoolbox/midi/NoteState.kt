@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Tracks which notes are currently on for all 16 MIDI channels.
+ *
+ * The state of each channel is stored in two Longs (one bit per note), so setting, clearing and
+ * testing a note is O(1) and counting or iterating the active notes only touches the set bits.
+ * The velocity and the time stamp of each note on are kept as well.
+ *
+ * The same model is used by the piano keyboard, routers and recorders. It can be fed directly with
+ * packed messages through apply(). Notes that are still on when an All Notes Off, All Sounds Off or
+ * a mode change arrives are reported as hanging notes.
+ *
+ * This class is not thread safe.
+ */
+class NoteState {
+
+    /**
+     * Receiver for hanging note reports.
+     */
+    interface HangingNoteListener {
+
+        /**
+         * A note was still on when the channel was turned off.
+         *
+         * @param channel The channel of the note.
+         * @param note The note number.
+         * @param onTime The time stamp of the note on.
+         */
+        fun onHangingNote(channel: Int, note: Int, onTime: Long)
+    }
+
+    /**
+     * Note bits, two Longs per channel.
+     */
+    private val bits = LongArray(32)
+
+    /**
+     * Velocities of the notes (channel * 128 + note).
+     */
+    private val velocities = ByteArray(16 * 128)
+
+    /**
+     * Time stamps of the note ons (channel * 128 + note).
+     */
+    private val onTimes = LongArray(16 * 128)
+
+    /**
+     * Receives the hanging note reports.
+     */
+    var hangingNoteListener: HangingNoteListener? = null
+
+    /**
+     * Number of hanging notes detected so far.
+     */
+    var hangingNoteCount = 0L
+        private set
+
+    /**
+     * Turn a note on.
+     *
+     * @param channel The channel of the note.
+     * @param note The note number.
+     * @param velocity The note on velocity.
+     * @param time Time stamp of the note on (any unit, e.g. ticks or nanoseconds).
+     */
+    fun noteOn(channel: Int, note: Int, velocity: Int = 127, time: Long = 0L) {
+        val word = (channel shl 1) or (note shr 6)
+        bits[word] = bits[word] or (1L shl (note and 63))
+        velocities[(channel shl 7) or note] = velocity.toByte()
+        onTimes[(channel shl 7) or note] = time
+    }
+
+    /**
+     * Turn a note off.
+     *
+     * @param channel The channel of the note.
+     * @param note The note number.
+     */
+    fun noteOff(channel: Int, note: Int) {
+        val word = (channel shl 1) or (note shr 6)
+        bits[word] = bits[word] and (1L shl (note and 63)).inv()
+    }
+
+    /**
+     * Checks if a note is on.
+     *
+     * @param channel The channel of the note.
+     * @param note The note number.
+     */
+    fun isOn(channel: Int, note: Int): Boolean {
+        if (note !in 0..127)
+            return false
+        return (bits[(channel shl 1) or (note shr 6)] ushr (note and 63)) and 1L != 0L
+    }
+
+    /**
+     * The velocity of a note (only valid if the note is on).
+     */
+    fun velocity(channel: Int, note: Int) = velocities[(channel shl 7) or note].toInt()
+
+    /**
+     * The time stamp of the note on (only valid if the note is on).
+     */
+    fun onTime(channel: Int, note: Int) = onTimes[(channel shl 7) or note]
+
+    /**
+     * Number of notes that are on in a channel.
+     */
+    fun count(channel: Int) =
+        java.lang.Long.bitCount(bits[channel shl 1]) + java.lang.Long.bitCount(bits[(channel shl 1) + 1])
+
+    /**
+     * Number of notes that are on in all channels.
+     */
+    fun count(): Int {
+        var count = 0
+        for (word in bits)
+            count += java.lang.Long.bitCount(word)
+        return count
+    }
+
+    /**
+     * Checks if any note is on.
+     */
+    fun isEmpty(): Boolean {
+        for (word in bits) {
+            if (word != 0L)
+                return false
+        }
+        return true
+    }
+
+    /**
+     * Find the next note that is on.
+     *
+     * @param channel The channel to search.
+     * @param fromNote The first note to check.
+     * @return The note number or -1 if there is no note on at or above fromNote.
+     */
+    fun nextOn(channel: Int, fromNote: Int): Int {
+        var note = fromNote
+        while (note < 128) {
+            val word = bits[(channel shl 1) or (note shr 6)] ushr (note and 63)
+            if (word != 0L)
+                return note + java.lang.Long.numberOfTrailingZeros(word)
+            note = (note or 63) + 1
+        }
+        return -1
+    }
+
+    /**
+     * Call a function for each note that is on in a channel.
+     *
+     * @param channel The channel to iterate.
+     * @param action The function to call with the note number.
+     */
+    inline fun forEachOn(channel: Int, action: (Int) -> Unit) {
+        var note = nextOn(channel, 0)
+        while (note >= 0) {
+            action(note)
+            note = if (note < 127) nextOn(channel, note + 1) else -1
+        }
+    }
+
+    /**
+     * Copy the state of another note state.
+     */
+    fun copyFrom(other: NoteState) {
+        System.arraycopy(other.bits, 0, bits, 0, bits.size)
+        System.arraycopy(other.velocities, 0, velocities, 0, velocities.size)
+        System.arraycopy(other.onTimes, 0, onTimes, 0, onTimes.size)
+    }
+
+    /**
+     * Turn off all notes of a channel.
+     *
+     * @param channel The channel to clear.
+     */
+    fun clearChannel(channel: Int) {
+        bits[channel shl 1] = 0L
+        bits[(channel shl 1) + 1] = 0L
+    }
+
+    /**
+     * Turn off all notes.
+     */
+    fun clear() {
+        bits.fill(0L)
+    }
+
+    /**
+     * Update the state from a packed message.
+     *
+     * Note On/Off messages change the note state. All Sounds Off, All Notes Off and the mode
+     * change messages (Omni/Mono/Poly) turn off the channel and report the notes that were still
+     * on as hanging notes.
+     *
+     * @param message The packed message.
+     * @param time Time stamp of the message.
+     * @return True if the message changed the state.
+     */
+    fun apply(message: Int, time: Long = 0L): Boolean {
+        val channel = PackedMIDIMessage.channel(message)
+        when (PackedMIDIMessage.command(message)) {
+            0x80, 0x90 -> {
+                val note = PackedMIDIMessage.data1(message)
+                val wasOn = isOn(channel, note)
+                if (PackedMIDIMessage.isNoteOn(message)) {
+                    noteOn(channel, note, PackedMIDIMessage.data2(message), time)
+                    return !wasOn
+                }
+                noteOff(channel, note)
+                return wasOn
+            }
+            0xB0 -> {
+                when (PackedMIDIMessage.data1(message)) {
+                    120, 123, 124, 125, 126, 127 -> {
+                        if (count(channel) == 0)
+                            return false
+                        reportHangingNotes(channel)
+                        clearChannel(channel)
+                        return true
+                    }
+                }
+            }
+        }
+        return false
+    }
+
+    /**
+     * Report all notes of a channel that are still on.
+     */
+    private fun reportHangingNotes(channel: Int) {
+        hangingNoteCount += count(channel)
+        val listener = hangingNoteListener ?: return
+        forEachOn(channel) {
+            listener.onHangingNote(channel, it, onTime(channel, it))
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+/**
+ * Allocation free representation of short MIDI messages packed into a single Int.
+ *
+ * The layout of a packed message is:
+ *
+ *   bits  0..7  status byte (message type in the upper and channel in the lower nibble)
+ *   bits  8..15 first data byte
+ *   bits 16..23 second data byte
+ *
+ * All channel voice messages as well as the system common and realtime messages fit into this
+ * layout. System exclusive messages are of variable length and can not be packed. The value 0 has
+ * no valid status byte and is used as "no message" marker.
+ *
+ * Dense note and controller streams should be passed around in this form and only be converted to
+ * a full MIDIMessage object where needed.
+ */
+object PackedMIDIMessage {
+
+    /**
+     * Marker for "no message".
+     */
+    const val NONE = 0
+
+    /**
+     * Lookup table from the upper status nibble to the message type.
+     */
+    private val types = arrayOf(
+        MIDIMessage.MessageType.NoteOff,
+        MIDIMessage.MessageType.NoteOn,
+        MIDIMessage.MessageType.PolyphonicKeyPressure,
+        MIDIMessage.MessageType.ControlChange,
+        MIDIMessage.MessageType.ProgramChange,
+        MIDIMessage.MessageType.ChannelPressure,
+        MIDIMessage.MessageType.PitchBend,
+        MIDIMessage.MessageType.SystemExclusive)
+
+    /**
+     * Pack a message from its raw bytes.
+     *
+     * @param status The status byte (type and channel).
+     * @param data1 The first data byte (if any).
+     * @param data2 The second data byte (if any).
+     */
+    fun pack(status: Int, data1: Int, data2: Int) =
+        (status and 0xFF) or ((data1 and 0x7F) shl 8) or ((data2 and 0x7F) shl 16)
+
+    /**
+     * Pack a channel message from type, channel and data bytes.
+     *
+     * @param type The MIDI message type.
+     * @param channel The MIDI channel (0..15).
+     * @param data1 The first data byte (if any).
+     * @param data2 The second data byte (if any).
+     */
+    fun pack(type: MIDIMessage.MessageType, channel: Int, data1: Int, data2: Int) =
+        pack((type.msg.toInt() and 0xF0) or (channel and 0x0F), data1, data2)
+
+    /**
+     * Create a packed Note Off message.
+     *
+     * @param channel Channel to use for this message.
+     * @param note Note number to use for this message.
+     * @param velocity Release velocity to use for this message.
+     */
+    fun noteOff(channel: Int, note: Int, velocity: Int) =
+        pack(0x80 or (channel and 0x0F), note, velocity)
+
+    /**
+     * Create a packed Note On message.
+     *
+     * @param channel Channel to use for this message.
+     * @param note Note number to use for this message.
+     * @param velocity Velocity to use for this message.
+     */
+    fun noteOn(channel: Int, note: Int, velocity: Int) =
+        pack(0x90 or (channel and 0x0F), note, velocity)
+
+    /**
+     * Create a packed Polyphonic Key Pressure message.
+     *
+     * @param channel Channel to use for this message.
+     * @param note Note number to use for this message.
+     * @param pressure Pressure to use for this message.
+     */
+    fun polyphonicKeyPressure(channel: Int, note: Int, pressure: Int) =
+        pack(0xA0 or (channel and 0x0F), note, pressure)
+
+    /**
+     * Create a packed Control Change message.
+     *
+     * @param channel Channel to use for this message.
+     * @param controller Controller number to use for this message.
+     * @param value Controller value to use for this message.
+     */
+    fun controlChange(channel: Int, controller: Int, value: Int) =
+        pack(0xB0 or (channel and 0x0F), controller, value)
+
+    /**
+     * Create a packed Program Change message.
+     *
+     * @param channel Channel to use for this message.
+     * @param program Program number to use for this message.
+     */
+    fun programChange(channel: Int, program: Int) =
+        pack(0xC0 or (channel and 0x0F), program, 0)
+
+    /**
+     * Create a packed Channel Pressure (Aftertouch) message.
+     *
+     * @param channel Channel to use for this message.
+     * @param pressure Pressure to use for this message.
+     */
+    fun channelPressure(channel: Int, pressure: Int) =
+        pack(0xD0 or (channel and 0x0F), pressure, 0)
+
+    /**
+     * Create a packed Pitch Bend message.
+     *
+     * @param channel Channel to use for this message.
+     * @param value The unsigned 14 bit pitch bend value with the center at 0x2000.
+     */
+    fun pitchBend(channel: Int, value: Int) =
+        pack(0xE0 or (channel and 0x0F), value and 0x7F, value shr 7)
+
+    /**
+     * The status byte of a packed message.
+     */
+    fun status(message: Int) = message and 0xFF
+
+    /**
+     * The upper nibble of the status byte (0x80..0xF0).
+     */
+    fun command(message: Int) = message and 0xF0
+
+    /**
+     * The MIDI channel of a packed channel message.
+     */
+    fun channel(message: Int) = message and 0x0F
+
+    /**
+     * The first data byte of a packed message.
+     */
+    fun data1(message: Int) = (message shr 8) and 0x7F
+
+    /**
+     * The second data byte of a packed message.
+     */
+    fun data2(message: Int) = (message shr 16) and 0x7F
+
+    /**
+     * The 14 bit value of a packed pitch bend message.
+     */
+    fun pitchBendValue(message: Int) = data1(message) or (data2(message) shl 7)
+
+    /**
+     * The message type of a packed message.
+     *
+     * All system messages are reported as MessageType.SystemExclusive as there is no finer
+     * distinction in the MessageType enum.
+     */
+    fun type(message: Int) = types[(command(message) shr 4) and 0x07]
+
+    /**
+     * Checks whether a packed message starts a note.
+     *
+     * A Note On with velocity 0 is treated as a Note Off as the MIDI spec demands.
+     */
+    fun isNoteOn(message: Int) = command(message) == 0x90 && data2(message) != 0
+
+    /**
+     * Checks whether a packed message releases a note.
+     *
+     * This includes Note On messages with velocity 0.
+     */
+    fun isNoteOff(message: Int) =
+        command(message) == 0x80 || (command(message) == 0x90 && data2(message) == 0)
+
+    /**
+     * Checks whether the packed message is a channel message (0x80..0xEF).
+     */
+    fun isChannelMessage(message: Int) = status(message) in 0x80..0xEF
+
+    /**
+     * Checks whether the packed message is a system realtime message (0xF8..0xFF).
+     */
+    fun isRealtime(message: Int) = status(message) >= 0xF8
+
+    /**
+     * Number of bytes of a short message on the wire with the given status byte.
+     *
+     * System exclusive and undefined status bytes return 0.
+     *
+     * @param status The status byte.
+     */
+    fun sizeOfStatus(status: Int): Int {
+        return when (status and 0xF0) {
+            0x80, 0x90, 0xA0, 0xB0, 0xE0 -> 3
+            0xC0, 0xD0 -> 2
+            0xF0 -> when (status) {
+                0xF1, 0xF3 -> 2
+                0xF2 -> 3
+                0xF6, 0xF8, 0xFA, 0xFB, 0xFC, 0xFE, 0xFF -> 1
+                else -> 0
+            }
+            else -> 0
+        }
+    }
+
+    /**
+     * Number of bytes of a packed message on the wire.
+     */
+    fun size(message: Int) = sizeOfStatus(status(message))
+
+    /**
+     * Write a packed message into a byte array.
+     *
+     * This is the allocation free version of MIDIMessage.asBytes(). There is no range checking so
+     * please make sure that there is room for at least 3 bytes.
+     *
+     * @param message The packed message.
+     * @param dest The destination array.
+     * @param offset The position of the first byte in the array.
+     * @return The number of bytes written.
+     */
+    fun writeTo(message: Int, dest: ByteArray, offset: Int): Int {
+        val size = size(message)
+        if (size > 0)
+            dest[offset] = status(message).toByte()
+        if (size > 1)
+            dest[offset + 1] = data1(message).toByte()
+        if (size > 2)
+            dest[offset + 2] = data2(message).toByte()
+        return size
+    }
+
+    /**
+     * Convert a MIDIMessage into its packed form.
+     *
+     * @param message The message to convert. This must not be a system exclusive message.
+     */
+    fun fromMessage(message: MIDIMessage): Int {
+        require(message.message != MIDIMessage.MessageType.SystemExclusive) {
+            "System exclusive messages can not be packed"
+        }
+        val data1 = if (message.dataSize > 0) message.parameter1 else 0
+        val data2 = if (message.dataSize > 1) message.parameter2 else 0
+        return pack(message.message, message.channel, data1, data2)
+    }
+
+    /**
+     * Convert a packed channel message back into a MIDIMessage object.
+     *
+     * @param message The packed message. This must be a channel message.
+     */
+    fun toMessage(message: Int): MIDIMessage {
+        require(isChannelMessage(message)) { "Only channel messages can be converted" }
+        val channel = channel(message).toByte()
+        return if (size(message) == 3)
+            MIDIMessage(type(message), channel, data1(message).toByte(), data2(message).toByte())
+        else
+            MIDIMessage(type(message), channel, data1(message).toByte())
+    }
+}
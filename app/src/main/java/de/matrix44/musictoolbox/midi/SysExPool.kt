@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Pool of fixed size byte slabs for system exclusive messages.
+ *
+ * Large system exclusive dumps (patch banks etc) are stored in a chain of slabs instead of one big
+ * array. The data is appended in chunks as it arrives, can be sent in chunks and streamed to disk
+ * without ever being copied into one piece. Released messages return their slabs to the pool.
+ *
+ * The pool is thread safe, the messages are not.
+ *
+ * @param slabSize Size of one slab in bytes.
+ * @param maxPooledSlabs Maximum number of unused slabs that are kept for reuse.
+ */
+class SysExPool constructor(val slabSize: Int = 4096, private val maxPooledSlabs: Int = 64) {
+
+    /**
+     * Unused slabs.
+     */
+    private val freeSlabs = arrayOfNulls<ByteArray>(maxPooledSlabs)
+
+    /**
+     * Number of unused slabs.
+     */
+    private var freeCount = 0
+
+    /**
+     * Get an empty message.
+     */
+    fun acquire() = SysExMessage(this)
+
+    /**
+     * Get a slab from the pool or create a new one.
+     */
+    internal fun obtainSlab(): ByteArray {
+        synchronized(freeSlabs) {
+            if (freeCount > 0) {
+                val slab = freeSlabs[--freeCount]!!
+                freeSlabs[freeCount] = null
+                return slab
+            }
+        }
+        return ByteArray(slabSize)
+    }
+
+    /**
+     * Return a slab to the pool.
+     */
+    internal fun recycleSlab(slab: ByteArray) {
+        synchronized(freeSlabs) {
+            if (freeCount < maxPooledSlabs)
+                freeSlabs[freeCount++] = slab
+        }
+    }
+
+    /**
+     * Parser listener that collects incoming system exclusive messages into pooled messages.
+     *
+     * The receiver of onSysEx() owns the message and has to release it when done.
+     *
+     * @param pool The pool for the messages.
+     */
+    abstract class Listener constructor(private val pool: SysExPool) : MIDIStreamParser.Listener {
+
+        /**
+         * The message that is currently received.
+         */
+        private var current: SysExMessage? = null
+
+        /**
+         * A system exclusive message was received.
+         *
+         * @param message The message. The complete flag tells if it was properly terminated.
+         */
+        abstract fun onSysEx(message: SysExMessage)
+
+        override fun onSysExStart() {
+            current?.release()
+            current = pool.acquire()
+        }
+
+        override fun onSysExData(data: ByteArray, offset: Int, length: Int) {
+            current?.append(data, offset, length)
+        }
+
+        override fun onSysExEnd(complete: Boolean) {
+            val message = current ?: return
+            current = null
+            message.complete = complete
+            onSysEx(message)
+        }
+    }
+}
+
+/**
+ * A system exclusive message stored in pooled slabs.
+ *
+ * The payload is stored without the framing 0xF0 and 0xF7 bytes. The framed form (as sent over
+ * the wire) is payload size + 2 bytes long.
+ */
+class SysExMessage internal constructor(private val pool: SysExPool) {
+
+    /**
+     * The slabs holding the data.
+     */
+    private var slabs = arrayOfNulls<ByteArray>(4)
+
+    /**
+     * Number of slabs in use.
+     */
+    private var slabCount = 0
+
+    /**
+     * Number of payload bytes.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Number of bytes including the framing 0xF0 and 0xF7.
+     */
+    val framedSize: Int
+        get() = size + 2
+
+    /**
+     * Was the message terminated by 0xF7 when it was received?
+     */
+    var complete = true
+
+    /**
+     * Append payload data.
+     *
+     * @param data Array that holds the data.
+     * @param offset Position of the first byte in the array.
+     * @param length Number of bytes.
+     */
+    fun append(data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+        var pos = offset
+        var rest = length
+        val slabSize = pool.slabSize
+        while (rest > 0) {
+
+            // Need a new slab?
+            val used = size % slabSize
+            if (used == 0 && size / slabSize == slabCount) {
+                if (slabCount == slabs.size)
+                    slabs = slabs.copyOf(slabCount * 2)
+                slabs[slabCount++] = pool.obtainSlab()
+            }
+
+            // Fill the current slab:
+            val count = minOf(rest, slabSize - used)
+            System.arraycopy(data, pos, slabs[size / slabSize]!!, used, count)
+            size += count
+            pos  += count
+            rest -= count
+        }
+    }
+
+    /**
+     * Read a payload byte.
+     *
+     * @param index Index of the byte.
+     */
+    fun byteAt(index: Int): Int {
+        val slabSize = pool.slabSize
+        return slabs[index / slabSize]!![index % slabSize].toInt() and 0xFF
+    }
+
+    /**
+     * Read a byte of the framed message.
+     *
+     * @param index Index of the byte (0 is 0xF0, framedSize - 1 is 0xF7).
+     */
+    fun framedByteAt(index: Int) = when (index) {
+        0 -> 0xF0
+        size + 1 -> 0xF7
+        else -> byteAt(index - 1)
+    }
+
+    /**
+     * Copy a range of the payload into an array.
+     *
+     * @param from Index of the first payload byte.
+     * @param dest The destination array.
+     * @param destOffset Position of the first byte in the destination array.
+     * @param length Number of bytes to copy.
+     */
+    fun copyTo(from: Int, dest: ByteArray, destOffset: Int, length: Int) {
+        val slabSize = pool.slabSize
+        var src = from
+        var dst = destOffset
+        var rest = length
+        while (rest > 0) {
+            val used = src % slabSize
+            val count = minOf(rest, slabSize - used)
+            System.arraycopy(slabs[src / slabSize]!!, used, dest, dst, count)
+            src  += count
+            dst  += count
+            rest -= count
+        }
+    }
+
+    /**
+     * Write a chunk of the framed message into a buffer.
+     *
+     * Call this with the returned position until framedSize is reached to send the message in
+     * packets.
+     *
+     * @param dest The destination buffer.
+     * @param position Index into the framed message where to continue.
+     * @return The position after the last written byte.
+     */
+    fun writeTo(dest: ByteBuffer, position: Int = 0): Int {
+        var pos = position
+
+        // Start byte:
+        if (pos == 0 && dest.hasRemaining()) {
+            dest.put(0xF0.toByte())
+            pos++
+        }
+
+        // Payload in slab sized pieces:
+        val slabSize = pool.slabSize
+        while (pos in 1..size && dest.hasRemaining()) {
+            val index = pos - 1
+            val used = index % slabSize
+            val count = minOf(dest.remaining(), slabSize - used, size - index)
+            dest.put(slabs[index / slabSize]!!, used, count)
+            pos += count
+        }
+
+        // End byte:
+        if (pos == size + 1 && dest.hasRemaining()) {
+            dest.put(0xF7.toByte())
+            pos++
+        }
+        return pos
+    }
+
+    /**
+     * Stream the message into an output stream (e.g. a file).
+     *
+     * @param out The destination stream.
+     * @param framed Include the 0xF0 and 0xF7 bytes.
+     */
+    fun writeTo(out: OutputStream, framed: Boolean = true) {
+        if (framed)
+            out.write(0xF0)
+        val slabSize = pool.slabSize
+        var rest = size
+        for (i in 0 until slabCount) {
+            val count = minOf(rest, slabSize)
+            out.write(slabs[i]!!, 0, count)
+            rest -= count
+        }
+        if (framed)
+            out.write(0xF7)
+    }
+
+    /**
+     * Create a regular MIDIMessage from this message.
+     *
+     * This copies the data and is meant for small messages only.
+     */
+    fun toMessage(): MIDIMessage {
+        val data = ByteArray(size)
+        copyTo(0, data, 0, size)
+        return MIDIMessage.systemExclusive(data)
+    }
+
+    /**
+     * Remove all data and return the slabs to the pool. The message can be reused afterwards.
+     */
+    fun release() {
+        for (i in 0 until slabCount) {
+            pool.recycleSlab(slabs[i]!!)
+            slabs[i] = null
+        }
+        slabCount = 0
+        size = 0
+        complete = true
+    }
+}
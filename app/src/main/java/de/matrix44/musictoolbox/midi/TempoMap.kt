@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.midi
+
+import kotlin.math.roundToInt
+
+/**
+ * Index for converting between ticks and wall clock time.
+ *
+ * The map is divided into segments of constant tempo. Each segment stores its start tick, its
+ * tempo and the precomputed time in microseconds from the start to the segment. A conversion is
+ * a binary search for the segment plus one multiplication.
+ *
+ * @param ticksPerQuarter Resolution of the ticks (the division of a MIDI file).
+ * @param defaultBpm Tempo before the first tempo change.
+ */
+class TempoMap constructor(val ticksPerQuarter: Int, defaultBpm: Double = 120.0) {
+
+    /**
+     * Start ticks of the segments.
+     */
+    private var segmentTicks = IntArray(16)
+
+    /**
+     * Tempo of the segments in microseconds per quarter note.
+     */
+    private var segmentTempos = IntArray(16)
+
+    /**
+     * Time from the start to the segments in microseconds.
+     */
+    private var segmentMicros = LongArray(16)
+
+    /**
+     * Number of segments. There is always at least the initial segment.
+     */
+    var size = 1
+        private set
+
+    init {
+        require(ticksPerQuarter > 0) { "Invalid resolution $ticksPerQuarter" }
+        segmentTempos[0] = bpmToMicros(defaultBpm)
+    }
+
+    /**
+     * Add a tempo change.
+     *
+     * Tempo changes are usually added in time order, but out of order changes are handled as well.
+     * A change at the tick of an existing change replaces it.
+     *
+     * @param ticks Position of the tempo change.
+     * @param microsPerQuarter The new tempo in microseconds per quarter note.
+     */
+    fun addTempo(ticks: Int, microsPerQuarter: Int) {
+        require(ticks >= 0) { "Invalid position $ticks" }
+        require(microsPerQuarter > 0) { "Invalid tempo $microsPerQuarter" }
+
+        // Find the segment that contains the tick:
+        val index = segmentAt(ticks)
+
+        // Replace existing change:
+        if (segmentTicks[index] == ticks) {
+            segmentTempos[index] = microsPerQuarter
+            updateMicros(index + 1)
+            return
+        }
+
+        // Make room:
+        if (size == segmentTicks.size) {
+            segmentTicks  = segmentTicks.copyOf(size * 2)
+            segmentTempos = segmentTempos.copyOf(size * 2)
+            segmentMicros = segmentMicros.copyOf(size * 2)
+        }
+
+        // Insert after the containing segment:
+        val insert = index + 1
+        System.arraycopy(segmentTicks,  insert, segmentTicks,  insert + 1, size - insert)
+        System.arraycopy(segmentTempos, insert, segmentTempos, insert + 1, size - insert)
+        System.arraycopy(segmentMicros, insert, segmentMicros, insert + 1, size - insert)
+        segmentTicks[insert]  = ticks
+        segmentTempos[insert] = microsPerQuarter
+        size++
+        updateMicros(insert)
+    }
+
+    /**
+     * Add a tempo change in beats per minute.
+     *
+     * @param ticks Position of the tempo change.
+     * @param bpm The new tempo in quarter notes per minute.
+     */
+    fun addBpm(ticks: Int, bpm: Double) = addTempo(ticks, bpmToMicros(bpm))
+
+    /**
+     * Convert a tick position into microseconds from the start.
+     *
+     * @param ticks The position to convert.
+     */
+    fun ticksToMicros(ticks: Int): Long {
+        val i = segmentAt(ticks)
+        return segmentMicros[i] + (ticks - segmentTicks[i]).toLong() * segmentTempos[i] / ticksPerQuarter
+    }
+
+    /**
+     * Convert microseconds from the start into a tick position.
+     *
+     * @param micros The time to convert.
+     */
+    fun microsToTicks(micros: Long): Int {
+
+        // Binary search for the last segment that starts before the time:
+        var lo = 0
+        var hi = size - 1
+        while (lo < hi) {
+            val mid = (lo + hi + 1) ushr 1
+            if (segmentMicros[mid] <= micros)
+                lo = mid
+            else
+                hi = mid - 1
+        }
+        return segmentTicks[lo] + ((micros - segmentMicros[lo]) * ticksPerQuarter / segmentTempos[lo]).toInt()
+    }
+
+    /**
+     * The tempo at a tick position in microseconds per quarter note.
+     *
+     * @param ticks The position.
+     */
+    fun tempoAt(ticks: Int) = segmentTempos[segmentAt(ticks)]
+
+    /**
+     * The tempo at a tick position in quarter notes per minute.
+     *
+     * @param ticks The position.
+     */
+    fun bpmAt(ticks: Int) = 60000000.0 / tempoAt(ticks)
+
+    /**
+     * Find the index of the segment that contains the given tick.
+     */
+    private fun segmentAt(ticks: Int): Int {
+        var lo = 0
+        var hi = size - 1
+        while (lo < hi) {
+            val mid = (lo + hi + 1) ushr 1
+            if (segmentTicks[mid] <= ticks)
+                lo = mid
+            else
+                hi = mid - 1
+        }
+        return lo
+    }
+
+    /**
+     * Recalculate the start times of all segments from the given index on.
+     */
+    private fun updateMicros(from: Int) {
+        for (i in maxOf(from, 1) until size) {
+            val length = (segmentTicks[i] - segmentTicks[i - 1]).toLong()
+            segmentMicros[i] = segmentMicros[i - 1] + length * segmentTempos[i - 1] / ticksPerQuarter
+        }
+    }
+
+    /**
+     * Static functions.
+     */
+    companion object {
+
+        /**
+         * Convert beats per minute into microseconds per quarter note.
+         */
+        fun bpmToMicros(bpm: Double) = (60000000.0 / bpm).roundToInt()
+
+        /**
+         * Build the tempo map of a MIDI file from its Set Tempo meta events.
+         *
+         * Format 0 and 1 files are searched in all tracks, format 2 files only in the first track.
+         * SMPTE based files don't have a tempo: The map then uses a fixed tempo where one "quarter"
+         * is one second.
+         *
+         * @param reader The file to scan.
+         * @param defaultBpm Tempo before the first tempo change.
+         */
+        fun fromFile(reader: MIDIFileReader, defaultBpm: Double = 120.0): TempoMap {
+
+            // SMPTE time:
+            if (reader.division < 0) {
+                val fps = -(reader.division shr 8)
+                val ticksPerFrame = reader.division and 0xFF
+                val map = TempoMap((if (fps == 29) 30 else fps) * ticksPerFrame)
+                map.addTempo(0, 1000000)
+                return map
+            }
+
+            // Collect tempo changes:
+            val map = TempoMap(reader.division, defaultBpm)
+            val tracks = if (reader.format == 2) minOf(1, reader.trackCount) else reader.trackCount
+            for (track in 0 until tracks) {
+                val cursor = reader.track(track)
+                while (cursor.next()) {
+                    val tempo = cursor.tempo
+                    if (tempo > 0)
+                        map.addTempo(cursor.ticks, tempo)
+                }
+            }
+            return map
+        }
+    }
+}
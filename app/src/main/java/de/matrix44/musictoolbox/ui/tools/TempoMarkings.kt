@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox.ui.tools
+
+import android.content.res.Resources
+import de.matrix44.musictoolbox.R
+import kotlin.math.abs
+
+/**
+ * The tempo markings of the tempo table with their BPM ranges.
+ *
+ * The markings are read from the tempo_definitions array (name/description pairs). The BPM range
+ * is taken from the "x bpm - y bpm" part of the description (a hyphen or an en dash), "x+ bpm" is an
+ * open range. Entries without a range are skipped.
+ * This is used to show the matching markings for a tempo, eg the tempo of a MIDI clock.
+ *
+ * @param markings The markings in the order of the table.
+ */
+class TempoMarkings constructor(val markings: List<Marking>) {
+
+    /**
+     * One tempo marking.
+     */
+    class Marking constructor(
+
+        /**
+         * Name of the marking (eg Allegro).
+         */
+        val name: String,
+
+        /**
+         * Lowest tempo of the range.
+         */
+        val minBpm: Double,
+
+        /**
+         * Highest tempo of the range.
+         */
+        val maxBpm: Double
+    ) {
+
+        /**
+         * Checks if a tempo is inside the range of this marking.
+         */
+        operator fun contains(bpm: Double) = bpm in minBpm..maxBpm
+    }
+
+    /**
+     * Find all markings whose range contains the given tempo.
+     *
+     * @param bpm The tempo.
+     */
+    fun markingsFor(bpm: Double) = markings.filter { bpm in it }
+
+    /**
+     * Find the marking that fits the given tempo best.
+     *
+     * This is the marking whose range center is closest to the tempo. Markings that contain the
+     * tempo are preferred.
+     *
+     * @param bpm The tempo.
+     * @return The marking or null if there are no markings at all.
+     */
+    fun bestMarkingFor(bpm: Double): Marking? {
+        if (markings.isEmpty())
+            return null
+        val candidates = markingsFor(bpm).ifEmpty { markings }
+        return candidates.minBy { abs((it.minBpm + it.maxBpm) * 0.5 - bpm) }
+    }
+
+    /**
+     * Constants and factories.
+     */
+    companion object {
+
+        /**
+         * Pattern of the range inside a description, the second group is empty for open ranges.
+         */
+        private val rangePattern =
+            Regex("""(\d+(?:\.\d+)?)\s*(?:bpm\s*[-\u2013]\s*(\d+(?:\.\d+)?)\s*bpm|\+\s*bpm)""")
+
+        /**
+         * Parse name/description pairs.
+         *
+         * @param definitions The pairs as in the tempo_definitions array.
+         */
+        fun parse(definitions: Array<String>): TempoMarkings {
+            val markings = ArrayList<Marking>()
+            for (item in 0 until (definitions.size / 2)) {
+                val match = rangePattern.find(definitions[item * 2 + 1]) ?: continue
+                val max = match.groupValues[2]
+                markings.add(Marking(definitions[item * 2].trim(), match.groupValues[1].toDouble(),
+                    if (max.isEmpty()) Double.MAX_VALUE else max.toDouble()))
+            }
+            return TempoMarkings(markings)
+        }
+
+        /**
+         * Load the markings of the tempo table.
+         *
+         * @param resources The resources of the app.
+         */
+        fun fromResources(resources: Resources) =
+            parse(resources.getStringArray(R.array.tempo_definitions))
+    }
+}
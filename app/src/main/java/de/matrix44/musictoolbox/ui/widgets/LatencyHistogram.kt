@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2020 by Rolf Meyerhoff <rm@matrix44.de>
+ *
+ * License:
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation,  either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; see
+ * the file COPYING. If not, see http://www.gnu.org/licenses/ or write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package de.matrix44.musictoolbox
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock free histogram of latencies.
+ *
+ * The buckets are log-linear like in a HDR histogram: every power of two is divided into 32 equal
+ * sub buckets, so each recorded value is kept with a relative error of about 3% over the whole
+ * range of a Long. Recording is wait free and does not allocate, so it can be done from the UI
+ * thread or an audio thread while another thread reads the percentiles.
+ *
+ * The percentiles are computed from the current counts. They are not an atomic snapshot if values
+ * are recorded at the same time, but that is good enough for statistics.
+ */
+class LatencyHistogram {
+
+    /**
+     * Number of values in each bucket.
+     */
+    private val counts = AtomicLongArray(BUCKETS)
+
+    /**
+     * Number of recorded values.
+     */
+    private val total = AtomicLong()
+
+    /**
+     * Highest recorded value.
+     */
+    private val max = AtomicLong()
+
+    /**
+     * Number of recorded values.
+     */
+    val count: Long
+        get() = total.get()
+
+    /**
+     * Highest recorded value in nanoseconds.
+     */
+    val maxNanos: Long
+        get() = max.get()
+
+    /**
+     * Median in nanoseconds.
+     */
+    val p50Nanos: Long
+        get() = valueAtPercentile(50.0)
+
+    /**
+     * 95th percentile in nanoseconds.
+     */
+    val p95Nanos: Long
+        get() = valueAtPercentile(95.0)
+
+    /**
+     * 99th percentile in nanoseconds.
+     */
+    val p99Nanos: Long
+        get() = valueAtPercentile(99.0)
+
+    /**
+     * Record a value.
+     *
+     * @param nanos The latency in nanoseconds. Negative values are recorded as 0.
+     */
+    fun record(nanos: Long) {
+        val value = maxOf(nanos, 0L)
+        counts.incrementAndGet(bucketOf(value))
+        total.incrementAndGet()
+        var current = max.get()
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get()
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values falls.
+     *
+     * @param percentile The percentile (0..100).
+     * @return The value in nanoseconds (middle of the bucket) or 0 if nothing was recorded.
+     */
+    fun valueAtPercentile(percentile: Double): Long {
+        require(percentile in 0.0..100.0) { "Invalid percentile $percentile" }
+        val count = total.get()
+        if (count == 0L)
+            return 0L
+
+        // Walk the buckets until the rank is reached:
+        val rank = maxOf(Math.ceil(percentile / 100.0 * count).toLong(), 1L)
+        var sum = 0L
+        for (bucket in 0 until BUCKETS) {
+            sum += counts.get(bucket)
+            if (sum >= rank)
+                return minOf(valueOf(bucket), max.get())
+        }
+        return max.get()
+    }
+
+    /**
+     * Remove all recorded values.
+     */
+    fun reset() {
+        for (bucket in 0 until BUCKETS)
+            counts.set(bucket, 0L)
+        total.set(0L)
+        max.set(0L)
+    }
+
+    /**
+     * Find the bucket of a value.
+     */
+    private fun bucketOf(value: Long): Int {
+        if (value < SUB_BUCKETS)
+            return value.toInt()
+        val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS
+        return SUB_BUCKETS + shift * SUB_BUCKETS + ((value ushr shift).toInt() - SUB_BUCKETS)
+    }
+
+    /**
+     * Get the value in the middle of a bucket.
+     */
+    private fun valueOf(bucket: Int): Long {
+        if (bucket < SUB_BUCKETS)
+            return bucket.toLong()
+        val shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS
+        val sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS
+        return (sub.toLong() shl shift) + ((1L shl shift) shr 1)
+    }
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Sub buckets per power of two.
+         */
+        private const val SUB_BUCKET_BITS = 5
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+
+        /**
+         * Number of buckets: the values below 32 and 32 sub buckets for each higher power of two.
+         */
+        private const val BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS
+    }
+}
@@ -19,16 +19,22 @@ package de.matrix44.musictoolbox
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
+import android.graphics.Rect
 import android.graphics.RectF
 import android.text.TextPaint
 import android.util.AttributeSet
+import android.view.Choreographer
 import android.view.MotionEvent
 import android.view.MotionEvent.INVALID_POINTER_ID
 import android.view.View
+import de.matrix44.musictoolbox.midi.NoteState
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.math.absoluteValue
+import kotlin.math.floor
 
 /**
  * Virtual piano keyboard view.
@@ -121,6 +127,7 @@ class PianoKeys : View {
         get() = _markMiddleC
         set(value) {
             _markMiddleC = value
+            invalidateSmallKeysCache()
             invalidate()
         }
 
@@ -158,7 +165,8 @@ class PianoKeys : View {
     get() = _lineColor
         set(value) {
             _lineColor = value
-            linePaint?.color = _lineColor
+            linePaint.color = _lineColor
+            invalidateSmallKeysCache()
             invalidate()
         }
 
@@ -171,7 +179,8 @@ class PianoKeys : View {
         get() = _lineShadeColor
         set(value) {
             _lineShadeColor = value
-            lineShadePaint?.color = _lineShadeColor
+            lineShadePaint.color = _lineShadeColor
+            invalidateSmallKeysCache()
             invalidate()
         }
 
@@ -184,7 +193,8 @@ class PianoKeys : View {
         get() = _whiteKeyColor
         set(value) {
             _whiteKeyColor = value
-            whiteKeyPaint?.color = _whiteKeyColor
+            whiteKeyPaint.color = _whiteKeyColor
+            invalidateSmallKeysCache()
             invalidate()
         }
 
@@ -197,7 +207,8 @@ class PianoKeys : View {
         get() = _whiteKeyShadeColor
         set(value) {
             _whiteKeyShadeColor = value
-            whiteKeyShadePaint?.color = _whiteKeyShadeColor
+            whiteKeyShadePaint.color = _whiteKeyShadeColor
+            invalidateSmallKeysCache()
             invalidate()
         }
 
@@ -210,7 +221,8 @@ class PianoKeys : View {
         get() = _blackKeyColor
         set(value) {
             _blackKeyColor = value
-            blackKeyPaint?.color = _blackKeyColor
+            blackKeyPaint.color = _blackKeyColor
+            invalidateSmallKeysCache()
             invalidate()
         }
 
@@ -223,7 +235,8 @@ class PianoKeys : View {
         get() = _blackKeyShadeColor
         set(value) {
             _blackKeyShadeColor = value
-            blackKeyShadePaint?.color = _blackKeyShadeColor
+            blackKeyShadePaint.color = _blackKeyShadeColor
+            invalidateSmallKeysCache()
             invalidate()
         }
 
@@ -236,7 +249,7 @@ class PianoKeys : View {
         get() = _keyDownKeyColor
         set(value) {
             _keyDownKeyColor = value
-            keyDownKeyPaint?.color = _keyDownKeyColor
+            keyDownKeyPaint.color = _keyDownKeyColor
             invalidate()
         }
 
@@ -249,7 +262,7 @@ class PianoKeys : View {
         get() = _keyDownKeyShadeColor
         set(value) {
             _keyDownKeyShadeColor = value
-            keyDownKeyShadePaint?.color = _keyDownKeyShadeColor
+            keyDownKeyShadePaint.color = _keyDownKeyShadeColor
             invalidate()
         }
 
@@ -290,7 +303,6 @@ class PianoKeys : View {
         get() = _localOff
         set(value) {
             _localOff = value
-            invalidate()
         }
 
     /**
@@ -325,33 +337,246 @@ class PianoKeys : View {
         }
 
     /**
-     * Public function that turns on a specific note on the keyboard.
+     * Optional latency measurement from the touch to the onPianoKeyDown() call.
      *
-     * @param note The note to turn on.
+     * If a histogram is set, the time between the MotionEvent and the listener call of every
+     * played key is recorded. The event time has millisecond resolution, so the values can be up
+     * to 1 ms too high.
      */
-    fun noteOn(note: Int) {
+    var keyDownLatency: LatencyHistogram? = null
+
+    /**
+     * Optional latency measurement from the touch to the frame that shows the key.
+     *
+     * If a histogram is set, the time between the MotionEvent and the first onDraw() that shows
+     * the played key as pressed is recorded. This only works if the key is turned on (by localOff
+     * set to false or by the listener).
+     */
+    var keyFrameLatency: LatencyHistogram? = null
+
+    /**
+     * A set of note changes that is applied to the keyboard as one transaction.
+     *
+     * Fill the transaction and pass it to commitNotes(). The object can be cleared and reused, so
+     * no objects are created for each update.
+     */
+    class NoteTransaction {
+
+        /**
+         * Bit mask of the changed notes (128 bits).
+         */
+        internal val changed = LongArray(2)
+
+        /**
+         * The new states of the changed notes (128 bits).
+         */
+        internal val values = LongArray(2)
+
+        /**
+         * Turn all notes off before the changes are applied.
+         */
+        internal var clearAll = false
+
+        /**
+         * Turn a note on.
+         *
+         * @param note The note to turn on.
+         */
+        fun noteOn(note: Int) {
+            set(note, true)
+        }
+
+        /**
+         * Turn a note off.
+         *
+         * @param note The note to turn off.
+         */
+        fun noteOff(note: Int) {
+            set(note, false)
+        }
+
+        /**
+         * Turn all notes off. Changes made after this call are applied afterwards.
+         */
+        fun allNotesOff() {
+            clearAll = true
+            changed[0] = 0L
+            changed[1] = 0L
+        }
+
+        /**
+         * Reset the transaction so it can be reused.
+         */
+        fun clear() {
+            clearAll = false
+            changed[0] = 0L
+            changed[1] = 0L
+            values[0] = 0L
+            values[1] = 0L
+        }
 
-        // Add to active notes:
-        if (!activeKeys.contains(note))
-            activeKeys.add(note)
+        /**
+         * Record the new state of a note.
+         */
+        internal fun set(note: Int, on: Boolean) {
+            if (note !in 0..127)
+                return
+            val bit = 1L shl (note and 63)
+            val word = note shr 6
+            changed[word] = changed[word] or bit
+            values[word] = if (on) values[word] or bit else values[word] and bit.inv()
+        }
+
+        /**
+         * Merge another transaction into this one. Later changes win.
+         */
+        internal fun mergeFrom(other: NoteTransaction) {
+            if (other.clearAll) {
+                clearAll = true
+                changed[0] = 0L
+                changed[1] = 0L
+            }
+            for (word in 0..1) {
+                changed[word] = changed[word] or other.changed[word]
+                values[word] = (values[word] and other.changed[word].inv()) or (other.values[word] and other.changed[word])
+            }
+        }
+    }
 
-        // Redraw:
-        invalidate()
+    /**
+     * Apply a set of note changes.
+     *
+     * This function can be called from any thread. All changes that arrive until the next frame
+     * are coalesced and applied at once, so the keyboard is invalidated only once per frame.
+     *
+     * @param transaction The changes to apply. The transaction is not modified and can be reused
+     *                    right after this call.
+     */
+    fun commitNotes(transaction: NoteTransaction) {
+        synchronized(pendingNotes) {
+            pendingNotes.mergeFrom(transaction)
+        }
+        scheduleNoteUpdate()
     }
 
     /**
      * Public function that turns on a specific note on the keyboard.
      *
+     * This function can be called from any thread, the change is shown with the next frame.
+     *
      * @param note The note to turn on.
      */
+    fun noteOn(note: Int) {
+        synchronized(pendingNotes) {
+            pendingNotes.set(note, true)
+        }
+        scheduleNoteUpdate()
+    }
+
+    /**
+     * Public function that turns off a specific note on the keyboard.
+     *
+     * This function can be called from any thread, the change is shown with the next frame.
+     *
+     * @param note The note to turn off.
+     */
     fun noteOff(note: Int) {
+        synchronized(pendingNotes) {
+            pendingNotes.set(note, false)
+        }
+        scheduleNoteUpdate()
+    }
+
+    /**
+     * Public function that turns off all notes on the keyboard.
+     *
+     * This function can be called from any thread, the change is shown with the next frame.
+     */
+    fun allNotesOff() {
+        synchronized(pendingNotes) {
+            pendingNotes.allNotesOff()
+        }
+        scheduleNoteUpdate()
+    }
+
+    /**
+     * Request a call of applyPendingNotes() with the next frame.
+     */
+    private fun scheduleNoteUpdate() {
+        if (noteUpdateScheduled.compareAndSet(false, true))
+            choreographer.postFrameCallback(noteFrameCallback)
+    }
+
+    /**
+     * Apply all pending note changes (called by the choreographer on the UI thread).
+     */
+    private fun applyPendingNotes() {
+
+        // Take the pending changes, new changes will schedule the next frame:
+        noteUpdateScheduled.set(false)
+        synchronized(pendingNotes) {
+            appliedNotes.clear()
+            appliedNotes.mergeFrom(pendingNotes)
+            pendingNotes.clear()
+        }
+
+        // Apply changes, only the changed keys are drawn again:
+        if (appliedNotes.clearAll && !activeKeys.isEmpty()) {
+            var note = activeKeys.nextOn(0, 0)
+            while (note >= 0) {
+                invalidateKey(note)
+                note = activeKeys.nextOn(0, note + 1)
+            }
+            activeKeys.clear()
+        }
+        for (note in 0..127) {
+            val word = note shr 6
+            val bit = 1L shl (note and 63)
+            if (appliedNotes.changed[word] and bit == 0L)
+                continue
+            val on = appliedNotes.values[word] and bit != 0L
+            if (on != activeKeys.isOn(0, note)) {
+                if (on)
+                    activeKeys.noteOn(0, note)
+                else
+                    activeKeys.noteOff(0, note)
+                invalidateKey(note)
+            }
+        }
+    }
 
-        // Remove active notes:
-        if (activeKeys.contains(note))
-            activeKeys.remove(note)
+    /**
+     * Invalidate the areas of a key on both keyboards.
+     *
+     * Only the invalidated areas are drawn again with the next frame. The areas include the lines
+     * and black keys next to the key as these are drawn again on top of a pressed white key.
+     *
+     * Note: With hardware acceleration Android ignores the dirty rectangles and redraws the whole
+     * view, so this only helps with software rendering.
+     *
+     * @param note The note number of the key.
+     */
+    @Suppress("DEPRECATION")
+    private fun invalidateKey(note: Int) {
+
+        // Small keyboard:
+        val smallKey = smallKeyOf(note)
+        if (_smallKeysVisible && smallKey != null) {
+            val r = smallKey.r
+            val m = if (smallKey.isBlack) 1.0f else r.width() * 0.5f
+            invalidate((r.left - m).toInt(), r.top.toInt() - 1, (r.right + m).toInt() + 2, r.bottom.toInt() + 2)
+        }
 
-        // Redraw:
-        invalidate()
+        // Big keyboard (only the visible part):
+        val index = note - bigKeys[0].noteNumber
+        if (index !in 0 until bigKeys.size)
+            return
+        val r = bigKeys[index].r
+        val xOffset = scrollPosition * (bigKeyboardWidth - bigKeysRect.width())
+        val left = maxOf(bigKeysRect.left + r.left - xOffset, bigKeysRect.left)
+        val right = minOf(bigKeysRect.left + r.right - xOffset, bigKeysRect.right)
+        if (left <= right + 1.0f)
+            invalidate(left.toInt() - 1, r.top.toInt() - 1, right.toInt() + 2, r.bottom.toInt() + 2)
     }
 
     /**
@@ -410,31 +635,20 @@ class PianoKeys : View {
         _currentOctave        = a.getInt(R.styleable.PianoKeys_currentOctave, _currentOctave)
         a.recycle()
 
-        // Create all of our painters:
-        linePaint            = Paint(Paint.ANTI_ALIAS_FLAG)
-        lineShadePaint       = Paint(Paint.ANTI_ALIAS_FLAG)
-        whiteKeyPaint        = Paint(Paint.ANTI_ALIAS_FLAG)
-        whiteKeyShadePaint   = Paint(Paint.ANTI_ALIAS_FLAG)
-        blackKeyPaint        = Paint(Paint.ANTI_ALIAS_FLAG)
-        blackKeyShadePaint   = Paint(Paint.ANTI_ALIAS_FLAG)
-        keyDownKeyPaint      = Paint(Paint.ANTI_ALIAS_FLAG)
-        keyDownKeyShadePaint = Paint(Paint.ANTI_ALIAS_FLAG)
-        textPaint            = TextPaint(Paint.ANTI_ALIAS_FLAG)
-
         // Set initial colors:
-        linePaint!!.color            = _lineColor
-        lineShadePaint!!.color       = _lineShadeColor
-        whiteKeyPaint!!.color        = _whiteKeyColor
-        whiteKeyShadePaint!!.color   = _whiteKeyShadeColor
-        blackKeyPaint!!.color        = _blackKeyColor
-        blackKeyShadePaint!!.color   = _blackKeyShadeColor
-        keyDownKeyPaint!!.color      = _keyDownKeyColor
-        keyDownKeyShadePaint!!.color = _keyDownKeyShadeColor
-
-        textPaint!!.color     = _lineColor
-        textPaint!!.textAlign = Paint.Align.LEFT
-        textPaint!!.textSize  = 20.0f
-        //linePaint!!.strokeWidth = 2f
+        linePaint.color            = _lineColor
+        lineShadePaint.color       = _lineShadeColor
+        whiteKeyPaint.color        = _whiteKeyColor
+        whiteKeyShadePaint.color   = _whiteKeyShadeColor
+        blackKeyPaint.color        = _blackKeyColor
+        blackKeyShadePaint.color   = _blackKeyShadeColor
+        keyDownKeyPaint.color      = _keyDownKeyColor
+        keyDownKeyShadePaint.color = _keyDownKeyShadeColor
+
+        textPaint.color     = _lineColor
+        textPaint.textAlign = Paint.Align.LEFT
+        textPaint.textSize  = 20.0f
+        //linePaint.strokeWidth = 2f
 
         // Create keys:
         for (i in 21..108) {
@@ -454,6 +668,7 @@ class PianoKeys : View {
         // Update keys:
         updateSmallKeysMeasurements()
         updateBigKeysMeasurements()
+        invalidateSmallKeysCache()
 
         // Update visuals:
         updateVisibleArea()
@@ -510,6 +725,12 @@ class PianoKeys : View {
             if ((key.noteNumber + 1) % 12 == 0)
                 octaveStart += octaveWidth
         }
+
+        // Marker of the middle C:
+        val c = smallKeys[60 - smallKeys[0].noteNumber].r
+        val m = c.width() * 0.2f
+        val w = c.width() - (m * 2.0f)
+        middleCRect.set(c.left + m + 1.0f, c.bottom - m - w + 1.0f, c.right - m + 1.0f, c.bottom - m + 1.0f)
     }
 
     /**
@@ -541,6 +762,9 @@ class PianoKeys : View {
 
         // Calc where the starting octave begins in relation to the zero position:
         var octaveStart = -keyLayout[smallKeys[0].noteNumber % 12].r.left * octaveWidth
+        bigOctaveWidth = octaveWidth
+        bigOctaveStart = octaveStart
+        bigOctaveNote  = smallKeys[0].noteNumber - smallKeys[0].noteNumber % 12
 
         // Loop through all notes:
         var octaveX = 0.0f
@@ -567,9 +791,9 @@ class PianoKeys : View {
 
         // Update text size to be half a key in width:
         val maxTextWidth = whiteKeyWidth * 0.5f
-        textPaint!!.textSize = 100.0f
-        val tw = textPaint!!.measureText("C4")
-        textPaint!!.textSize = maxTextWidth * 100.0f / tw
+        textPaint.textSize = 100.0f
+        val tw = textPaint.measureText("C4")
+        textPaint.textSize = maxTextWidth * 100.0f / tw
 
         // Update scroll position if we are in octave mode:
         if (_octaveMode) {
@@ -636,14 +860,45 @@ class PianoKeys : View {
         // Base class fills the background with the styled background color:
         super.onDraw(canvas)
 
+        // Get the area that has to be drawn:
+        if (!canvas.getClipBounds(clipBounds))
+            return
+
         // Draw the keyboards:
-        drawBigKeyboard(canvas)
-        drawSmallKeyboard(canvas)
+        if (clipBounds.bottom >= bigKeysRect.top)
+            drawBigKeyboard(canvas)
+        if (clipBounds.top <= smallKeysRect.bottom + 1.0f)
+            drawSmallKeyboard(canvas)
+
+        // Measure the latency of the keys that are shown for the first time:
+        if (pendingTouchTimes > 0)
+            recordFrameLatencies()
+    }
+
+    /**
+     * Record the touch to frame latency of the played keys that are now shown as pressed.
+     */
+    private fun recordFrameLatencies() {
+        val now = System.nanoTime()
+        val histogram = keyFrameLatency
+        for (note in 0..127) {
+            val touchNanos = keyTouchTimes[note]
+            if (touchNanos == 0L || !activeKeys.isOn(0, note))
+                continue
+            histogram?.record(now - touchNanos)
+            keyTouchTimes[note] = 0L
+            pendingTouchTimes--
+        }
     }
 
     /**
      * Draws the small overview keyboard (if visible).
      *
+     * The keys are taken from two cached images (all keys shaded and all keys in the visible
+     * range), so a frame only draws the images, the keys at the borders of the visible range and
+     * the pressed keys. All geometry is computed when the measurements change, so this function
+     * does not allocate any objects.
+     *
      * @param canvas The canvas on which the keys should be drawn.
      */
     private fun drawSmallKeyboard(canvas: Canvas) {
@@ -652,120 +907,241 @@ class PianoKeys : View {
         if (!_smallKeysVisible)
             return
 
-        // Fill background with hidden area:
-        canvas.drawRect(smallKeysRect.left, smallKeysRect.top, smallKeysRect.right + 1.0f, smallKeysRect.bottom + 1.0f, whiteKeyShadePaint!!)
+        // Get the cached keyboard images:
+        if (!smallKeysCacheValid)
+            updateSmallKeysCache()
+        val normalBitmap = smallKeysBitmap
+        val shadeBitmap = smallKeysShadeBitmap
+        if (!smallKeysCacheValid || normalBitmap == null || shadeBitmap == null)
+            return
 
-        // Draw white keys:
-        var firstKey = true
-        for (key in smallKeys) {
+        // The hidden area:
+        canvas.drawBitmap(shadeBitmap, 0.0f, 0.0f, null)
+
+        // The visible area (the white keys inside the range and the black keys between them):
+        val firstWhite = if (isBlackKey(lowestVisibleKey)) lowestVisibleKey + 1 else lowestVisibleKey
+        val lastWhite = if (isBlackKey(highestVisibleKey)) highestVisibleKey - 1 else highestVisibleKey
+        val firstKey = smallKeyOf(firstWhite)
+        val lastKey = smallKeyOf(lastWhite)
+        if (firstKey != null && lastKey != null && firstWhite <= lastWhite) {
+            canvas.save()
+            canvas.clipRect(firstKey.r.left, smallKeysRect.top, lastKey.r.right + 1.0f, smallKeysRect.bottom + 1.0f)
+            canvas.drawBitmap(normalBitmap, 0.0f, 0.0f, null)
+            canvas.restore()
+
+            // The black keys at the borders overlap both areas:
+            drawSmallBlackKey(canvas, firstWhite - 1)
+            drawSmallBlackKey(canvas, lastWhite + 1)
+        }
 
-            // Draw the key?
-            if (key.isBlack)
-                continue
+        // Pressed keys:
+        var note = activeKeys.nextOn(0, 0)
+        while (note >= 0) {
+            if (isBlackKey(note))
+                drawSmallBlackKey(canvas, note)
+            else
+                drawSmallWhiteKey(canvas, note)
+            note = activeKeys.nextOn(0, note + 1)
+        }
+
+        // Border top, left and right lines around the small keyboard:
+        if (_drawSmallKeyOutline) {
+            canvas.drawLine(smallKeysRect.left,  smallKeysRect.top, smallKeysRect.left,  smallKeysRect.bottom, linePaint)
+            canvas.drawLine(smallKeysRect.right, smallKeysRect.top, smallKeysRect.right, smallKeysRect.bottom, linePaint)
+            canvas.drawLine(smallKeysRect.left,  smallKeysRect.top, smallKeysRect.right, smallKeysRect.top,    linePaint)
+        }
 
-            // Get pressed state:
-            val isActive = key.noteNumber in lowestVisibleKey..highestVisibleKey
+        // Divider line between the keyboards:
+        if (_drawKeyDivider)
+            canvas.drawLine(smallKeysRect.left, smallKeysRect.bottom, smallKeysRect.right, smallKeysRect.bottom, linePaint)
+    }
 
-            // The draw function does not include the right and bottom border:
-            val drawRect = RectF(key.r.left, key.r.top, key.r.right + 1.0f, key.r.bottom + 1.0f)
+    /**
+     * Draws a pressed white key of the small keyboard on top of the cached images.
+     *
+     * The neighbour lines and black keys are drawn again because the key covers them.
+     *
+     * @param canvas The canvas on which the key should be drawn.
+     * @param note The note number of the key.
+     */
+    private fun drawSmallWhiteKey(canvas: Canvas, note: Int) {
+
+        // Get key and state:
+        val key = smallKeyOf(note) ?: return
+        val r = key.r
+        val isActive = note in lowestVisibleKey..highestVisibleKey
+
+        // The draw function does not include the right and bottom border:
+        if (isActive)
+            canvas.drawRect(r.left, r.top, r.right + 1.0f, r.bottom + 1.0f, keyDownKeyPaint)
+        else
+            canvas.drawRect(r.left, r.top, r.right + 1.0f, r.bottom + 1.0f, keyDownKeyShadePaint)
+
+        // Divider lines to the neighbours (the first key has none on the left side):
+        if (note != smallKeys[0].noteNumber)
+            canvas.drawLine(r.left, r.top, r.left, r.bottom, if (isActive) linePaint else lineShadePaint)
+        val next = if (isBlackKey(note + 1)) note + 2 else note + 1
+        if (smallKeyOf(next) != null) {
+            val nextActive = next in lowestVisibleKey..highestVisibleKey
+            canvas.drawLine(r.right, r.top, r.right, r.bottom, if (nextActive) linePaint else lineShadePaint)
+        }
 
-            // Draw active key background:
-            if (isActive)
-                canvas.drawRect(drawRect, whiteKeyPaint!!)
+        // Mark middle C:
+        if (_markMiddleC && note == 60)
+            canvas.drawOval(middleCRect, if (isActive) linePaint else lineShadePaint)
 
-            // Draw the active rect:
-            if (key.noteNumber in activeKeys) {
-                if (isActive)
-                    canvas.drawRect(drawRect, keyDownKeyPaint!!)
-                else
-                    canvas.drawRect(drawRect, keyDownKeyShadePaint!!)
-            }
+        // Black neighbours:
+        drawSmallBlackKey(canvas, note - 1)
+        drawSmallBlackKey(canvas, note + 1)
+    }
 
-            // Draw the key divider line only if it's not the first line:
-            if (!firstKey) {
-                if (!isActive)
-                    canvas.drawLine(key.r.left, key.r.top, key.r.left, key.r.bottom, lineShadePaint!!)
-                else
-                    canvas.drawLine(key.r.left, key.r.top, key.r.left, key.r.bottom, linePaint!!)
-            }
-            firstKey = false
-
-            // Mark middle C:
-            if (_markMiddleC && key.noteNumber == 60) {
-                val m = key.r.width() * 0.2f
-                val w = key.r.width() - (m * 2.0f)
-                val r = RectF(key.r.left + m + 1, key.r.bottom - m - w + 1.0f, key.r.right - m + 1, key.r.bottom - m + 1.0f)
-                if (!isActive)
-                    canvas.drawOval(r, lineShadePaint!!)
-                else
-                    canvas.drawOval(r, linePaint!!)
-            }
+    /**
+     * Draws a black key of the small keyboard on top of the cached images.
+     *
+     * @param canvas The canvas on which the key should be drawn.
+     * @param note The note number of the key. Nothing is drawn if this is no black key.
+     */
+    private fun drawSmallBlackKey(canvas: Canvas, note: Int) {
 
+        // Get key and state:
+        val key = smallKeyOf(note) ?: return
+        if (!key.isBlack)
+            return
+        val r = key.r
+        val isActive = note in lowestVisibleKey..highestVisibleKey
+
+        // Active keys need a frame:
+        if (activeKeys.isOn(0, note)) {
+            if (isActive) {
+                canvas.drawRect(r.left, r.top, r.right + 1.0f, r.bottom + 1.0f, keyDownKeyPaint)
+                canvas.drawLine(r.left, r.top, r.left, r.bottom, linePaint)
+                canvas.drawLine(r.right, r.top, r.right, r.bottom, linePaint)
+                canvas.drawLine(r.left, r.bottom, r.right, r.bottom, linePaint)
+            } else {
+                canvas.drawRect(r.left, r.top, r.right + 1.0f, r.bottom + 1.0f, keyDownKeyShadePaint)
+                canvas.drawLine(r.left, r.top, r.left, r.bottom, lineShadePaint)
+                canvas.drawLine(r.right, r.top, r.right, r.bottom, lineShadePaint)
+                canvas.drawLine(r.left, r.bottom, r.right, r.bottom, lineShadePaint)
+            }
+        }
+        else {
+            // Solid rectangle for normal black keys:
+            if (isActive)
+                canvas.drawRect(r.left, r.top, r.right + 1.0f, r.bottom + 1.0f, blackKeyPaint)
+            else
+                canvas.drawRect(r.left, r.top, r.right + 1.0f, r.bottom + 1.0f, blackKeyShadePaint)
         }
+    }
 
-        // Draw black keys:
-        for (key in smallKeys) {
+    /**
+     * Render the cached images of the small keyboard.
+     *
+     * The images are only created again if the size of the view changed.
+     */
+    private fun updateSmallKeysCache() {
 
-            // Draw the key?
-            if (!key.isBlack)
-                continue
+        // Size of the images (view coordinates, so they can be drawn at 0, 0):
+        val w = width
+        val h = (smallKeysRect.bottom + 2.0f).toInt()
+        if (w <= 0 || h <= 0 || smallKeys[0].r.width() <= 0.0f)
+            return
 
-            // Get pressed state:
-            val isActive = key.noteNumber in lowestVisibleKey..highestVisibleKey
+        // Create the images if needed:
+        var normalBitmap = smallKeysBitmap
+        var shadeBitmap = smallKeysShadeBitmap
+        if (normalBitmap == null || shadeBitmap == null || normalBitmap.width != w || normalBitmap.height != h) {
+            normalBitmap?.recycle()
+            shadeBitmap?.recycle()
+            normalBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888)
+            shadeBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888)
+            smallKeysBitmap = normalBitmap
+            smallKeysShadeBitmap = shadeBitmap
+        }
 
-            // The draw function does not include the right and bottom border:
-            val drawRect = RectF(key.r.left, key.r.top, key.r.right + 1.0f, key.r.bottom + 1.0f)
-
-            // Active keys need a frame:
-            if (key.noteNumber in activeKeys) {
-                if (isActive) {
-                    canvas.drawRect(drawRect, keyDownKeyPaint!!)
-                    canvas.drawLine(key.r.left, key.r.top, key.r.left, key.r.bottom, linePaint!!)
-                    canvas.drawLine(key.r.right, key.r.top, key.r.right, key.r.bottom, linePaint!!)
-                    canvas.drawLine(key.r.left, key.r.bottom, key.r.right, key.r.bottom, linePaint!!)
-                } else {
-                    canvas.drawRect(drawRect, keyDownKeyShadePaint!!)
-                    canvas.drawLine(key.r.left, key.r.top, key.r.left, key.r.bottom, lineShadePaint!!)
-                    canvas.drawLine(key.r.right, key.r.top, key.r.right, key.r.bottom, lineShadePaint!!)
-                    canvas.drawLine(key.r.left, key.r.bottom, key.r.right, key.r.bottom, lineShadePaint!!)
-                }
-            }
-            else {
-                // Solid rectangle for normal black keys:
-                if (isActive)
-                    canvas.drawRect(drawRect, blackKeyPaint!!)
-                else
-                    canvas.drawRect(drawRect, blackKeyShadePaint!!)
-            }
+        // Render both versions:
+        renderSmallKeys(normalBitmap, false)
+        renderSmallKeys(shadeBitmap, true)
+        smallKeysCacheValid = true
+    }
+
+    /**
+     * Render all keys of the small keyboard without pressed keys into an image.
+     *
+     * @param bitmap The target image.
+     * @param shaded Render the hidden (shaded) version of the keys.
+     */
+    private fun renderSmallKeys(bitmap: Bitmap, shaded: Boolean) {
+
+        // Prepare the canvas:
+        bitmap.eraseColor(Color.TRANSPARENT)
+        val canvas = Canvas(bitmap)
+        val keyPaint = if (shaded) whiteKeyShadePaint else whiteKeyPaint
+        val blackPaint = if (shaded) blackKeyShadePaint else blackKeyPaint
+        val lPaint = if (shaded) lineShadePaint else linePaint
+
+        // Background:
+        canvas.drawRect(smallKeysRect.left, smallKeysRect.top, smallKeysRect.right + 1.0f, smallKeysRect.bottom + 1.0f, keyPaint)
+
+        // Divider lines of the white keys (except for the first key):
+        for (i in 1 until smallKeys.size) {
+            val r = smallKeys[i].r
+            if (!smallKeys[i].isBlack)
+                canvas.drawLine(r.left, r.top, r.left, r.bottom, lPaint)
         }
 
-        // Border top, left and right lines around the small keyboard:
-        if (_drawSmallKeyOutline) {
-            canvas.drawLine(smallKeysRect.left,  smallKeysRect.top, smallKeysRect.left,  smallKeysRect.bottom, linePaint!!)
-            canvas.drawLine(smallKeysRect.right, smallKeysRect.top, smallKeysRect.right, smallKeysRect.bottom, linePaint!!)
-            canvas.drawLine(smallKeysRect.left,  smallKeysRect.top, smallKeysRect.right, smallKeysRect.top,    linePaint!!)
+        // Mark middle C:
+        if (_markMiddleC)
+            canvas.drawOval(middleCRect, lPaint)
+
+        // Black keys:
+        for (key in smallKeys) {
+            if (key.isBlack)
+                canvas.drawRect(key.r.left, key.r.top, key.r.right + 1.0f, key.r.bottom + 1.0f, blackPaint)
         }
+    }
 
-        // Divider line between the keyboards:
-        if (_drawKeyDivider)
-            canvas.drawLine(smallKeysRect.left, smallKeysRect.bottom, smallKeysRect.right, smallKeysRect.bottom, linePaint!!)
+    /**
+     * Mark the cached images of the small keyboard as outdated.
+     */
+    private fun invalidateSmallKeysCache() {
+        smallKeysCacheValid = false
     }
 
+    /**
+     * Get a key of the small keyboard.
+     *
+     * @param note The note number of the key.
+     * @return The key or null if the note is outside of the keyboard.
+     */
+    private fun smallKeyOf(note: Int): KeyRect? {
+        val index = note - smallKeys[0].noteNumber
+        return if (index in 0 until smallKeys.size) smallKeys[index] else null
+    }
+
+    /**
+     * Checks if a note is played on a black key.
+     */
+    private fun isBlackKey(note: Int) = note >= 0 && keyLayout[note % 12].isBlack
+
     /**
      * Draws the big keyboard.
      *
+     * Like the small keyboard this is done without allocating any objects, the keys are only moved
+     * by the scroll offset.
+     *
      * @param canvas The canvas on which the keys should be drawn.
      */
     private fun drawBigKeyboard(canvas: Canvas) {
 
         // Fill background:
-        canvas.drawRect(bigKeysRect.left, bigKeysRect.top, bigKeysRect.right + 1.0f, bigKeysRect.bottom + 1.0f, whiteKeyPaint!!)
+        canvas.drawRect(bigKeysRect.left, bigKeysRect.top, bigKeysRect.right + 1.0f, bigKeysRect.bottom + 1.0f, whiteKeyPaint)
 
         // Calc scroll offset:
         val xOffset =  scrollPosition * (bigKeyboardWidth - bigKeysRect.width())
 
         // Draw white keys:
-        for (key in bigKeys) {
+        for (i in 0 until bigKeys.size) {
+            val key = bigKeys[i]
 
             // Skip black keys:
             if (key.isBlack)
@@ -774,42 +1150,34 @@ class PianoKeys : View {
             // The drawRect function does not include the right and bottom border:
             val left = bigKeysRect.left + key.r.left - xOffset
             val right = bigKeysRect.left + key.r.right - xOffset
-            val drawRect = RectF(left, key.r.top, right + 1.0f, key.r.bottom + 1.0f)
 
-            // Is this key to the left of the view?
-            if (right < bigKeysRect.left)
+            // Is this key to the left of the view or the redrawn area?
+            if (right < bigKeysRect.left || right + 1.0f < clipBounds.left)
                 continue
 
             // Did we leave the drawing area?
-            if (left > bigKeysRect.right)
+            if (left > bigKeysRect.right || left - 1.0f > clipBounds.right)
                 break
 
             // Draw the key:
-            if (key.noteNumber in activeKeys) {
-
-                // Clip key to the viewing area:
-                val r = RectF()
-                r.setIntersect(key.r, bigKeysRect)
-
-                // Draw it:
-                canvas.drawRect(drawRect, keyDownKeyPaint!!)
-            }
+            if (activeKeys.isOn(0, key.noteNumber))
+                canvas.drawRect(left, key.r.top, right + 1.0f, key.r.bottom + 1.0f, keyDownKeyPaint)
 
             // Draw the line between the keys:
-            if (drawRect.left - 0.5f > bigKeysRect.left && drawRect.left + 0.5f < bigKeysRect.right)
-                canvas.drawLine(left, key.r.top, left, key.r.bottom, linePaint!!)
+            if (left - 0.5f > bigKeysRect.left && left + 0.5f < bigKeysRect.right)
+                canvas.drawLine(left, key.r.top, left, key.r.bottom, linePaint)
 
             // Mark Cs:
             if (_markAllCs && key.noteNumber % 12 == 0) {
-                val o = (key.noteNumber / 12) - 1
                 val m = (right - left) * 0.1f
                 if (right - m < bigKeysRect.right && left + m > bigKeysRect.left)
-                    canvas.drawText("C$o", left + m, key.r.bottom - m, textPaint!!)
+                    canvas.drawText(octaveLabels[key.noteNumber / 12], left + m, key.r.bottom - m, textPaint)
             }
         }
 
         // Draw black keys:
-        for (key in bigKeys) {
+        for (i in 0 until bigKeys.size) {
+            val key = bigKeys[i]
 
             // Skip black keys:
             if (!key.isBlack)
@@ -818,49 +1186,95 @@ class PianoKeys : View {
             // The draw function does not include the right and bottom border:
             val left = bigKeysRect.left + key.r.left - xOffset
             val right = bigKeysRect.left + key.r.right - xOffset
-            val drawRect = RectF(left, key.r.top, right + 1.0f, key.r.bottom + 1.0f)
 
-            // Is this key to the left of the view?
-            if (right < bigKeysRect.left)
+            // Is this key to the left of the view or the redrawn area?
+            if (right < bigKeysRect.left || right + 1.0f < clipBounds.left)
                 continue
 
             // Did we leave the drawing area?
-            if (left > bigKeysRect.right)
+            if (left > bigKeysRect.right || left - 1.0f > clipBounds.right)
                 break
 
-            // Clip black key to the viewing area:
-            val r = RectF()
-            r.setIntersect(drawRect, bigKeysRect)
-
             // Draw it:
-            if (key.noteNumber in activeKeys) {
-                canvas.drawRect(drawRect, keyDownKeyPaint!!)
+            if (activeKeys.isOn(0, key.noteNumber)) {
+                canvas.drawRect(left, key.r.top, right + 1.0f, key.r.bottom + 1.0f, keyDownKeyPaint)
 
                 // Add outline if visible:
                 if (left - 0.5f > bigKeysRect.left && left + 0.5f < bigKeysRect.right)
-                    canvas.drawLine(left, key.r.top, left, key.r.bottom, linePaint!!)
+                    canvas.drawLine(left, key.r.top, left, key.r.bottom, linePaint)
                 if (right - 0.5f > bigKeysRect.left && right + 0.5f < bigKeysRect.right)
-                    canvas.drawLine(right, key.r.top, right, key.r.bottom, linePaint!!)
-                canvas.drawLine(left, key.r.bottom, right, key.r.bottom, linePaint!!)
-            } else
-                canvas.drawRect(r, blackKeyPaint!!)
+                    canvas.drawLine(right, key.r.top, right, key.r.bottom, linePaint)
+                canvas.drawLine(left, key.r.bottom, right, key.r.bottom, linePaint)
+            } else {
+
+                // Clip black key to the viewing area:
+                val clippedLeft = maxOf(left, bigKeysRect.left)
+                val clippedRight = minOf(right + 1.0f, bigKeysRect.right)
+                if (clippedLeft < clippedRight)
+                    canvas.drawRect(clippedLeft, key.r.top, clippedRight, minOf(key.r.bottom + 1.0f, bigKeysRect.bottom), blackKeyPaint)
+            }
         }
 
         // Border bottom, left and right lines around the big keyboard:
         if (_drawBigKeyOutline) {
-            canvas.drawLine(bigKeysRect.left,  bigKeysRect.top,    bigKeysRect.left,  bigKeysRect.bottom, linePaint!!)
-            canvas.drawLine(bigKeysRect.right, bigKeysRect.top,    bigKeysRect.right, bigKeysRect.bottom, linePaint!!)
-            canvas.drawLine(bigKeysRect.left,  bigKeysRect.bottom, bigKeysRect.right, bigKeysRect.bottom, linePaint!!)
+            canvas.drawLine(bigKeysRect.left,  bigKeysRect.top,    bigKeysRect.left,  bigKeysRect.bottom, linePaint)
+            canvas.drawLine(bigKeysRect.right, bigKeysRect.top,    bigKeysRect.right, bigKeysRect.bottom, linePaint)
+            canvas.drawLine(bigKeysRect.left,  bigKeysRect.bottom, bigKeysRect.right, bigKeysRect.bottom, linePaint)
 
             // Top line only if needed:
             if (!_smallKeysVisible)
-                canvas.drawLine(smallKeysRect.left, smallKeysRect.bottom, smallKeysRect.right, smallKeysRect.bottom, linePaint!!)
+                canvas.drawLine(smallKeysRect.left, smallKeysRect.bottom, smallKeysRect.right, smallKeysRect.bottom, linePaint)
+        }
+    }
+
+    /**
+     * Find the key of the big keyboard at a position.
+     *
+     * The octave and the white key are computed directly from the x position. Only the black
+     * neighbours of that white key have to be checked if the position is in the black key area.
+     *
+     * @param x Horizontal position in view coordinates.
+     * @param y Vertical position in view coordinates.
+     * @return The note number of the key or -1 if there is no key at this position.
+     */
+    private fun hitTest(x: Float, y: Float): Int {
+
+        // Outside of the big keyboard?
+        if (!bigKeysRect.contains(x, y) || bigOctaveWidth <= 0.0f)
+            return -1
+
+        // Position in octaves, starting at the C below the first key:
+        val xOffset = scrollPosition * (bigKeyboardWidth - bigKeysRect.width())
+        val pos = (x - bigKeysRect.left + xOffset - bigOctaveStart) / bigOctaveWidth
+        val octave = floor(pos).toInt()
+        val inOctave = pos - octave
+        val whiteKey = (inOctave * 7.0f).toInt().coerceIn(0, 6)
+        val octaveNote = bigOctaveNote + octave * 12
+        val note = octaveNote + whiteKeyNotes[whiteKey]
+        val firstNote = bigKeys[0].noteNumber
+        val lastNote = bigKeys[bigKeys.size - 1].noteNumber
+        if (note !in firstNote..lastNote)
+            return -1
+
+        // Check the black neighbours (only if they exist on the keyboard):
+        if ((y - bigKeysRect.top) / bigKeysRect.height() < keyLayout[1].r.bottom) {
+            val left = blackKeyLeftOf[whiteKey]
+            val right = blackKeyRightOf[whiteKey]
+            if (left >= 0 && inOctave < keyLayout[left].r.right && octaveNote + left >= firstNote)
+                return octaveNote + left
+            if (right >= 0 && inOctave >= keyLayout[right].r.left && octaveNote + right <= lastNote)
+                return octaveNote + right
         }
+        return note
     }
 
     /**
      * React to touch events.
      *
+     * Every finger that goes down on the big keyboard plays a key. Sliding the finger over the
+     * keys releases the old key and plays the new one (glissando). The listener is called directly
+     * from here, the display follows with the next frame.
+     *
      * @param ev: Provides details for this event.
      */
     @SuppressLint("ClickableViewAccessibility")
@@ -868,97 +1282,46 @@ class PianoKeys : View {
 
         when (ev.actionMasked) {
 
-            MotionEvent.ACTION_DOWN -> {
+            MotionEvent.ACTION_DOWN, MotionEvent.ACTION_POINTER_DOWN -> {
                 val pointerIndex = ev.actionIndex
+                val pointerId = ev.getPointerId(pointerIndex)
                 val x = ev.getX(pointerIndex)
                 val y = ev.getY(pointerIndex)
 
                 // Start dragging on the small keyboard?
                 if (smallKeysRect.contains(x, y) && draggingPointerId == INVALID_POINTER_ID) {
-                    draggingPointerId = ev.getPointerId(0)
+                    draggingPointerId = pointerId
                     lastDraggingX = x
                 }
 
                 // Hit a key?
-                if (bigKeysRect.contains(x, y)) {
-
-                    // Calc scroll offset:
-                    val xOffset =  scrollPosition * (bigKeyboardWidth - bigKeysRect.width())
-
-                    // Scan white keys:
-                    var hitKey: KeyRect? = null
-                    for (key in bigKeys) {
-
-                        // Skip white keys:
-                        if (!key.isBlack)
-                            continue
-
-                        // Is this key to the left of the view?
-                        val right = bigKeysRect.left + key.r.right - xOffset
-                        if (right < bigKeysRect.left)
-                            continue
-
-                        // Did we leave the drawing area?
-                        val left = bigKeysRect.left + key.r.left - xOffset
-                        if (left > bigKeysRect.right)
-                            break
-
-                        // Check the key:
-                        val checkRect = RectF(left, key.r.top, right, key.r.bottom)
-                        if (checkRect.contains(x, y)) {
-                            hitKey = key
-                            break
-                        }
-                    }
-
-                    // Scan white keys:
-                    if (hitKey == null) {
-                        for (key in bigKeys) {
-
-                            // Skip black keys:
-                            if (key.isBlack)
-                                continue
-
-                            // Is this key to the left of the view?
-                            val right = bigKeysRect.left + key.r.right - xOffset
-                            if (right < bigKeysRect.left)
-                                continue
-
-                            // Did we leave the drawing area?
-                            val left = bigKeysRect.left + key.r.left - xOffset
-                            if (left > bigKeysRect.right)
-                                break
-
-                            // Check the key:
-                            val checkRect = RectF(left, key.r.top, right, key.r.bottom)
-                            if (checkRect.contains(x, y)) {
-                                hitKey = key
-                                break
-                            }
-                        }
-                    }
-
-                    // Hit something?
-                    if (hitKey != null && !activeKeys.contains(hitKey.noteNumber)) {
-
-                        // Add key with pointer to current down list:
-                        downKeys.add(DownKey(ev.getPointerId(0), hitKey.noteNumber))
-
-                        // Fire key hit event:
-                        _pianoKeyListener?.onPianoKeyDown(hitKey.noteNumber)
-
-                        // Update display if needed:
-                        if (!_localOff)
-                            noteOn(hitKey.noteNumber)
-                    }
+                else if (bigKeysRect.contains(x, y) && pointerId in pointerNotes.indices) {
+                    keyPointers[pointerId] = true
+                    pressKey(pointerId, hitTest(x, y), ev.eventTime)
                 }
             }
 
             MotionEvent.ACTION_MOVE -> {
 
+                // Let the fingers on the big keyboard slide over the keys:
+                for (pointerIndex in 0 until ev.pointerCount) {
+                    val pointerId = ev.getPointerId(pointerIndex)
+                    if (pointerId !in keyPointers.indices || !keyPointers[pointerId])
+                        continue
+
+                    // Check the positions between the last and this event, so fast glissandi
+                    // don't skip keys:
+                    for (h in 0 until ev.historySize)
+                        slideKey(pointerId, ev.getHistoricalX(pointerIndex, h), ev.getHistoricalY(pointerIndex, h),
+                            ev.getHistoricalEventTime(h))
+                    slideKey(pointerId, ev.getX(pointerIndex), ev.getY(pointerIndex), ev.eventTime)
+                }
+
                 // Are we dragging the small keyboard?
                 if (draggingPointerId != INVALID_POINTER_ID) {
                     val pointerIndex = ev.findPointerIndex(draggingPointerId)
+                    if (pointerIndex < 0)
+                        return true
                     val x = ev.getX(pointerIndex)
 
                     // Let's see how much we were moving:
@@ -1008,95 +1371,187 @@ class PianoKeys : View {
                 }
             }
 
-            // We lost control of some sort, reset active pointers:
+            // The last finger is gone or we lost control of some sort, release all keys:
             MotionEvent.ACTION_UP, MotionEvent.ACTION_CANCEL -> {
 
                 // Reset active states:
                 draggingPointerId = INVALID_POINTER_ID
+                for (pointerId in pointerNotes.indices)
+                    releaseKey(pointerId)
+                keyPointers.fill(false)
                 downKeys.clear()
-                activeKeys.clear()
-
-                // Redraw view:
-                invalidate()
             }
 
             MotionEvent.ACTION_POINTER_UP -> {
                 val pointerIndex = ev.actionIndex
+                val pointerId = ev.getPointerId(pointerIndex)
 
                 // Stopped dragging?
-                if (ev.getPointerId(pointerIndex) == draggingPointerId)
+                if (pointerId == draggingPointerId)
                     draggingPointerId = INVALID_POINTER_ID
 
                 // Released a key?
-                else {
-                    // Find our key:
-                    for (downKey in downKeys) {
-                        if (downKey.pointerID == ev.getPointerId(pointerIndex)) {
+                else if (pointerId in pointerNotes.indices) {
+                    releaseKey(pointerId)
+                    keyPointers[pointerId] = false
+                }
+            }
+        }
+        return true
+    }
 
-                            // Fire key release event:
-                            _pianoKeyListener?.onPianoKeyUp(downKey.noteNumber)
+    /**
+     * Play a key with a finger.
+     *
+     * Keys that are already held by another finger are not played again. Notes that are only shown
+     * on the keyboard (eg from a sequencer) don't block the keys.
+     *
+     * @param pointerId The ID of the finger.
+     * @param note The note number of the key or -1.
+     * @param time The time of the touch event.
+     */
+    private fun pressKey(pointerId: Int, note: Int, time: Long) {
 
-                            // Remove from pressed keys:
-                            downKeys.remove(downKey)
+        // Valid and free key?
+        if (note < 0 || downKeys.isOn(0, note))
+            return
 
-                            // Update display if needed:
-                            if (!_localOff)
-                                noteOff(downKey.noteNumber)
+        // Tie the key to the pointer:
+        pointerNotes[pointerId] = note
+        downKeys.noteOn(0, note, 127, time)
+
+        // Measure the latencies:
+        val touchNanos = time * 1000000L
+        keyDownLatency?.record(System.nanoTime() - touchNanos)
+        if (keyFrameLatency != null) {
+            if (keyTouchTimes[note] == 0L)
+                pendingTouchTimes++
+            keyTouchTimes[note] = touchNanos
+        }
 
-                            // Done:
-                            break
-                        }
-                    }
-                }
-            }
+        // Fire key hit event:
+        _pianoKeyListener?.onPianoKeyDown(note)
+
+        // Update display if needed:
+        if (!_localOff)
+            noteOn(note)
+    }
+
+    /**
+     * Release the key that is held by a finger (if any).
+     *
+     * @param pointerId The ID of the finger.
+     */
+    private fun releaseKey(pointerId: Int) {
+
+        // Find our key:
+        val note = pointerNotes[pointerId]
+        if (note < 0)
+            return
+
+        // Remove from pressed keys:
+        pointerNotes[pointerId] = -1
+        downKeys.noteOff(0, note)
+        if (keyTouchTimes[note] != 0L) {
+            keyTouchTimes[note] = 0L
+            pendingTouchTimes--
         }
-        return true
+
+        // Fire key release event:
+        _pianoKeyListener?.onPianoKeyUp(note)
+
+        // Update display if needed:
+        if (!_localOff)
+            noteOff(note)
+    }
+
+    /**
+     * Move a finger on the big keyboard and change the key if it slid onto another one.
+     *
+     * @param pointerId The ID of the finger.
+     * @param x Horizontal position of the finger.
+     * @param y Vertical position of the finger.
+     * @param time The time of the position.
+     */
+    private fun slideKey(pointerId: Int, x: Float, y: Float, time: Long) {
+        val note = hitTest(x, y)
+        if (note == pointerNotes[pointerId])
+            return
+        releaseKey(pointerId)
+        pressKey(pointerId, note, time)
     }
 
     /**
      * Painter for all lines.
      */
-    private var linePaint: Paint? = null
+    private val linePaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all shaded lines.
      */
-    private var lineShadePaint: Paint? = null
+    private val lineShadePaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all white keys.
      */
-    private var whiteKeyPaint: Paint? = null
+    private val whiteKeyPaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all shaded white keys.
      */
-    private var whiteKeyShadePaint: Paint? = null
+    private val whiteKeyShadePaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all black keys.
      */
-    private var blackKeyPaint: Paint? = null
+    private val blackKeyPaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all shaded black keys.
      */
-    private var blackKeyShadePaint: Paint? = null
+    private val blackKeyShadePaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all pressed keys.
      */
-    private var keyDownKeyPaint: Paint? = null
+    private val keyDownKeyPaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all shaded pressed keys.
      */
-    private var keyDownKeyShadePaint: Paint? = null
+    private val keyDownKeyShadePaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     /**
      * Painter for all text elements.
      */
-    private var textPaint: TextPaint? = null
+    private val textPaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
+
+    /**
+     * Labels of the Cs (indexed by note number / 12).
+     */
+    private val octaveLabels = Array(11) { "C${it - 1}" }
+
+    /**
+     * Marker of the middle C on the small keyboard.
+     */
+    private val middleCRect = RectF()
+
+    /**
+     * The area of the view that is drawn in the current frame.
+     */
+    private val clipBounds = Rect()
+
+    /**
+     * Cached images of the small keyboard: all keys in the visible and all keys in the hidden
+     * (shaded) colors.
+     */
+    private var smallKeysBitmap: Bitmap? = null
+    private var smallKeysShadeBitmap: Bitmap? = null
+
+    /**
+     * The cached images are up to date.
+     */
+    private var smallKeysCacheValid = false
 
     /**
      * Represents one key of the virtual keyboard.
@@ -1163,6 +1618,32 @@ class PianoKeys : View {
      */
     private var bigKeyboardWidth = 0.0f
 
+    /**
+     * Width of one octave of the big keyboard.
+     */
+    private var bigOctaveWidth = 0.0f
+
+    /**
+     * Position of the C below the first key on the big keyboard (relative to its left border).
+     */
+    private var bigOctaveStart = 0.0f
+
+    /**
+     * Note number of the C below the first key.
+     */
+    private var bigOctaveNote = 0
+
+    /**
+     * Note offsets of the white keys in an octave.
+     */
+    private val whiteKeyNotes = intArrayOf(0, 2, 4, 5, 7, 9, 11)
+
+    /**
+     * Black key on the left/right side of each white key (note offset in the octave or -1).
+     */
+    private val blackKeyLeftOf = intArrayOf(-1, 1, 3, -1, 6, 8, 10)
+    private val blackKeyRightOf = intArrayOf(1, 3, -1, 6, 8, 10, -1)
+
     /**
      * Current scrolling position of the big keyboard.
      */
@@ -1189,30 +1670,68 @@ class PianoKeys : View {
     private var lastDraggingX = 0.0f
 
     /**
-     * These keys are currently pressed.
+     * These keys are currently shown as pressed (channel 0).
      */
-    private var activeKeys = ArrayList<Int>(88)
+    private val activeKeys = NoteState()
 
     /**
-     * Container that ties a pointer/finger ID to a note number.
-     *
-     * This is used to track the currently pressed keys of the big keyboard.
+     * Note changes that wait for the next frame. This also serves as lock for the pending changes.
      */
-    internal class DownKey (
+    private val pendingNotes = NoteTransaction()
 
-        /**
-         * pointer/finger ID used.
-         */
-        var pointerID: Int,
+    /**
+     * Note changes that are applied in the current frame (UI thread only).
+     */
+    private val appliedNotes = NoteTransaction()
 
-        /**
-         * The key that was hit.
-         */
-        var noteNumber: Int
-    )
+    /**
+     * Is a note update scheduled for the next frame?
+     */
+    private val noteUpdateScheduled = AtomicBoolean(false)
+
+    /**
+     * The choreographer of the UI thread that schedules the note updates.
+     */
+    private val choreographer = Choreographer.getInstance()
+
+    /**
+     * Frame callback that applies the pending note changes.
+     */
+    private val noteFrameCallback = Choreographer.FrameCallback { applyPendingNotes() }
 
     /**
-     * List of currently pressed keys.
+     * The note that is held by each pointer/finger ID or -1.
      */
-    private var downKeys = ArrayList<DownKey>()
+    private val pointerNotes = IntArray(MAX_POINTERS) { -1 }
+
+    /**
+     * Fingers that went down on the big keyboard and play the keys they slide over.
+     */
+    private val keyPointers = BooleanArray(MAX_POINTERS)
+
+    /**
+     * Keys that are currently held down on the big keyboard (channel 0).
+     */
+    private val downKeys = NoteState()
+
+    /**
+     * Touch time in nanoseconds of the played keys that were not shown yet (0 = none).
+     */
+    private val keyTouchTimes = LongArray(128)
+
+    /**
+     * Number of entries in keyTouchTimes.
+     */
+    private var pendingTouchTimes = 0
+
+    /**
+     * Constants.
+     */
+    companion object {
+
+        /**
+         * Number of pointer IDs that are tracked.
+         */
+        private const val MAX_POINTERS = 32
+    }
 }
@@ -0,0 +1,63 @@
+package de.matrix44.musictoolbox
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Buckets and percentiles of the latency histogram.
+ */
+class LatencyHistogramTest {
+
+    @Test
+    fun smallValuesAreExact() {
+        val histogram = LatencyHistogram()
+        for (value in 0L until 32L)
+            histogram.record(value)
+        assertEquals(32, histogram.count)
+        assertEquals(15, histogram.valueAtPercentile(50.0))
+        assertEquals(31, histogram.valueAtPercentile(100.0))
+        assertEquals(0, histogram.valueAtPercentile(0.0))
+    }
+
+    @Test
+    fun percentilesWithinBucketPrecision() {
+        val histogram = LatencyHistogram()
+        for (i in 1..10000)
+            histogram.record(i * 1000L)
+        assertEquals(5000000.0, histogram.p50Nanos.toDouble(), 5000000.0 * 0.04)
+        assertEquals(9500000.0, histogram.p95Nanos.toDouble(), 9500000.0 * 0.04)
+        assertEquals(9900000.0, histogram.p99Nanos.toDouble(), 9900000.0 * 0.04)
+        assertEquals(10000000, histogram.maxNanos)
+    }
+
+    @Test
+    fun extremeValues() {
+        val histogram = LatencyHistogram()
+        histogram.record(-5)
+        histogram.record(Long.MAX_VALUE)
+        assertEquals(0, histogram.valueAtPercentile(50.0))
+        assertEquals(Long.MAX_VALUE, histogram.maxNanos)
+
+        // The highest bucket must not overflow and is capped by the maximum:
+        val top = histogram.valueAtPercentile(100.0)
+        assertTrue(top > Long.MAX_VALUE / 100 * 96)
+        assertTrue(top <= Long.MAX_VALUE)
+    }
+
+    @Test
+    fun resetAndEmpty() {
+        val histogram = LatencyHistogram()
+        assertEquals(0, histogram.p99Nanos)
+        histogram.record(1000)
+        histogram.reset()
+        assertEquals(0, histogram.count)
+        assertEquals(0, histogram.p50Nanos)
+        assertEquals(0, histogram.maxNanos)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun invalidPercentile() {
+        LatencyHistogram().valueAtPercentile(101.0)
+    }
+}
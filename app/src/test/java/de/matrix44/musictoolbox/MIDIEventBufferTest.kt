@@ -0,0 +1,39 @@
+package de.matrix44.musictoolbox
+
+import de.matrix44.musictoolbox.midi.MIDIEventBuffer
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.util.Random
+
+/**
+ * Sorting of event buffers.
+ */
+class MIDIEventBufferTest {
+
+    @Test
+    fun sortIsStable() {
+
+        // Many events with few distinct time stamps, the origin holds the insertion order:
+        val random = Random(1234)
+        val events = MIDIEventBuffer()
+        for (i in 0 until 1000)
+            events.append(random.nextInt(20) * 10, i, 0x90)
+        events.sort()
+
+        assertTrue(events.isSorted())
+        for (i in 1 until events.size) {
+            if (events.ticksAt(i - 1) == events.ticksAt(i))
+                assertTrue(events.originAt(i - 1) < events.originAt(i))
+        }
+    }
+
+    @Test
+    fun sortRangeOnly() {
+        val events = MIDIEventBuffer()
+        for (ticks in intArrayOf(50, 40, 30, 20, 10))
+            events.append(ticks, 0, 0x90)
+        events.sort(1, 4)
+        assertArrayEquals(intArrayOf(50, 20, 30, 40, 10), IntArray(events.size) { events.ticksAt(it) })
+    }
+}
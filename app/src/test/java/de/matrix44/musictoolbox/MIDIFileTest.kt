@@ -0,0 +1,142 @@
+package de.matrix44.musictoolbox
+
+import de.matrix44.musictoolbox.midi.MIDIEventBuffer
+import de.matrix44.musictoolbox.midi.MIDIFileReader
+import de.matrix44.musictoolbox.midi.MIDIFileWriter
+import de.matrix44.musictoolbox.midi.PackedMIDIMessage
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+
+/**
+ * Write/read round trip of standard MIDI files.
+ */
+class MIDIFileTest {
+
+    @Test
+    fun streamRoundTripKeepsAbsoluteTicks() {
+        val file = File.createTempFile("roundtrip", ".mid")
+        try {
+            MIDIFileWriter(FileOutputStream(file), 2).use {
+                it.writeTrack(track(0))
+                it.writeTrack(track(1))
+            }
+            checkFile(file)
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun channelRoundTripKeepsAbsoluteTicks() {
+        val file = File.createTempFile("roundtrip", ".mid")
+        try {
+            RandomAccessFile(file, "rw").use { raf ->
+                MIDIFileWriter(raf.channel).use {
+                    it.writeTrack(track(0))
+                    it.writeTrack(track(1))
+                }
+            }
+            checkFile(file)
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun systemMessagesAreSkipped() {
+        val file = File.createTempFile("roundtrip", ".mid")
+        try {
+
+            // A recording with clock, active sensing and reset between the notes:
+            val recording = MIDIEventBuffer()
+            recording.append(0, 0, 0xF8)
+            recording.append(240, 0, 0xFE)
+            recording.append(480, 0, PackedMIDIMessage.noteOn(0, 60, 100))
+            recording.append(600, 0, 0xFF)
+            recording.append(700, 0, 0xF8)
+            recording.append(960, 0, PackedMIDIMessage.noteOff(0, 60, 0))
+            recording.append(960, 0, PackedMIDIMessage.noteOn(0, 64, 90))
+            recording.append(1200, 0, 0xFE)
+            recording.append(1440, 0, PackedMIDIMessage.noteOff(0, 64, 0))
+            recording.append(1500, 0, 0xFF)
+            MIDIFileWriter(FileOutputStream(file), 1, format = 0).use {
+                it.writeTrack(recording)
+            }
+
+            // Only the notes come back, at their original positions:
+            val expected = track(0)
+            val actual = MIDIEventBuffer()
+            MIDIFileReader(file).decodeTrack(0, actual)
+            assertEquals(expected.size, actual.size)
+            for (i in 0 until expected.size) {
+                assertEquals(expected.ticksAt(i), actual.ticksAt(i))
+                assertEquals(expected.messageAt(i), actual.messageAt(i))
+            }
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun streamTrackCountMismatchFails() {
+        val file = File.createTempFile("roundtrip", ".mid")
+        try {
+            MIDIFileWriter(FileOutputStream(file), 2).use {
+                it.writeTrack(track(0))
+            }
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun negativeDeltaFails() {
+        val file = File.createTempFile("roundtrip", ".mid")
+        try {
+            RandomAccessFile(file, "rw").use { raf ->
+                val writer = MIDIFileWriter(raf.channel)
+                writer.beginTrack()
+                writer.writeEvent(-1, PackedMIDIMessage.noteOn(0, 60, 100))
+            }
+        } finally {
+            file.delete()
+        }
+    }
+
+    /**
+     * A track with notes at 480 and 960 (the second track is shifted by one beat).
+     */
+    private fun track(index: Int): MIDIEventBuffer {
+        val events = MIDIEventBuffer()
+        val shift = index * 480
+        events.append(480 + shift, 0, PackedMIDIMessage.noteOn(index, 60, 100))
+        events.append(960 + shift, 0, PackedMIDIMessage.noteOff(index, 60, 0))
+        events.append(960 + shift, 0, PackedMIDIMessage.noteOn(index, 64, 90))
+        events.append(1440 + shift, 0, PackedMIDIMessage.noteOff(index, 64, 0))
+        return events
+    }
+
+    /**
+     * Read the file back and compare all events.
+     */
+    private fun checkFile(file: File) {
+        val reader = MIDIFileReader(file)
+        assertEquals(1, reader.format)
+        assertEquals(480, reader.division)
+        assertEquals(2, reader.trackCount)
+        for (index in 0 until 2) {
+            val expected = track(index)
+            val actual = MIDIEventBuffer()
+            reader.decodeTrack(index, actual)
+            assertEquals(expected.size, actual.size)
+            for (i in 0 until expected.size) {
+                assertEquals(expected.ticksAt(i), actual.ticksAt(i))
+                assertEquals(expected.messageAt(i), actual.messageAt(i))
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package de.matrix44.musictoolbox
+
+import de.matrix44.musictoolbox.midi.MIDIEventBuffer
+import de.matrix44.musictoolbox.midi.MIDIQuantizer
+import de.matrix44.musictoolbox.midi.PackedMIDIMessage
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Quantization of event buffers.
+ */
+class MIDIQuantizerTest {
+
+    @Test
+    fun notesMoveToGrid() {
+        val events = MIDIEventBuffer()
+        events.append(10, 0, PackedMIDIMessage.noteOn(0, 60, 100))
+        events.append(50, 0, PackedMIDIMessage.noteOff(0, 60, 0))
+        events.append(100, 0, PackedMIDIMessage.noteOn(0, 62, 100))
+        events.append(150, 0, PackedMIDIMessage.noteOff(0, 62, 0))
+        assertEquals(2, MIDIQuantizer(96).quantize(events))
+        assertArrayEquals(intArrayOf(0, 40, 96, 146), ticksOf(events))
+    }
+
+    @Test
+    fun repeatedNotesKeepTheirPairs() {
+        val events = MIDIEventBuffer()
+        events.append(90, 0, PackedMIDIMessage.noteOn(0, 60, 100))
+        events.append(196, 0, PackedMIDIMessage.noteOff(0, 60, 0))
+        events.append(197, 0, PackedMIDIMessage.noteOn(0, 60, 100))
+        events.append(280, 0, PackedMIDIMessage.noteOff(0, 60, 0))
+        MIDIQuantizer(96).quantize(events)
+
+        // The first Note Off must not end up inside the second note:
+        assertArrayEquals(intArrayOf(96, 192, 192, 275), ticksOf(events))
+        assertTrue(PackedMIDIMessage.isNoteOn(events.messageAt(0)))
+        assertTrue(PackedMIDIMessage.isNoteOff(events.messageAt(1)))
+        assertTrue(PackedMIDIMessage.isNoteOn(events.messageAt(2)))
+        assertTrue(PackedMIDIMessage.isNoteOff(events.messageAt(3)))
+    }
+
+    @Test
+    fun swingMovesOffbeats() {
+        val quantizer = MIDIQuantizer(96, swing = 0.75f)
+        assertEquals(0, quantizer.gridPointFor(20))
+        assertEquals(144, quantizer.gridPointFor(130))
+        assertEquals(192, quantizer.gridPointFor(180))
+    }
+
+    private fun ticksOf(events: MIDIEventBuffer) = IntArray(events.size) { events.ticksAt(it) }
+}
@@ -0,0 +1,82 @@
+package de.matrix44.musictoolbox
+
+import de.matrix44.musictoolbox.midi.MIDIStreamParser
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.io.ByteArrayOutputStream
+
+/**
+ * Parsing of raw MIDI byte streams in chunks.
+ */
+class MIDIStreamParserTest {
+
+    /**
+     * Collects everything the parser reports as text.
+     */
+    private class Recorder : MIDIStreamParser.Listener {
+        val log = ArrayList<String>()
+        val sysEx = ByteArrayOutputStream()
+
+        override fun onMessage(message: Int) {
+            log.add("msg %06x".format(message))
+        }
+
+        override fun onSysExStart() {
+            sysEx.reset()
+        }
+
+        override fun onSysExData(data: ByteArray, offset: Int, length: Int) {
+            sysEx.write(data, offset, length)
+        }
+
+        override fun onSysExEnd(complete: Boolean) {
+            log.add("sysex ${sysEx.toByteArray().joinToString(",")} $complete")
+        }
+    }
+
+    /**
+     * Note On with running status, a clock inside the message, SysEx with a clock inside and a
+     * program change.
+     */
+    private val stream = byteArrayOf(
+        0x90.toByte(), 60, 100, 62, 0xF8.toByte(), 101,
+        0xF0.toByte(), 1, 2, 0xF8.toByte(), 3, 0xF7.toByte(),
+        0xC1.toByte(), 5)
+
+    @Test
+    fun wholeStream() {
+        val recorder = Recorder()
+        MIDIStreamParser(recorder).parse(stream)
+        assertEquals(listOf(
+            "msg 643c90", "msg 0000f8", "msg 653e90", "msg 0000f8", "sysex 1,2,3 true", "msg 0005c1"),
+            recorder.log)
+    }
+
+    @Test
+    fun everyChunkSplitGivesTheSameResult() {
+        val expected = Recorder()
+        MIDIStreamParser(expected).parse(stream)
+
+        // Split the stream at every possible position and into single bytes:
+        for (split in 1 until stream.size) {
+            val recorder = Recorder()
+            val parser = MIDIStreamParser(recorder)
+            parser.parse(stream, 0, split)
+            parser.parse(stream, split, stream.size - split)
+            assertEquals("split at $split", expected.log, recorder.log)
+        }
+        val recorder = Recorder()
+        val parser = MIDIStreamParser(recorder)
+        for (i in stream.indices)
+            parser.parse(stream, i, 1)
+        assertEquals(expected.log, recorder.log)
+    }
+
+    @Test
+    fun statusByteCutsSysEx() {
+        val recorder = Recorder()
+        MIDIStreamParser(recorder).parse(byteArrayOf(0xF0.toByte(), 1, 2, 0x80.toByte(), 60, 0))
+        assertEquals(listOf("sysex 1,2 false", "msg 003c80"), recorder.log)
+    }
+}